@@ -0,0 +1,30 @@
+package com.github.knokko.compressor;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs <i>task</i> for each band in the range <i>[minBand, boundBand)</i>, by recursively splitting the range until
+ * each action handles a single band
+ */
+class BandAction extends RecursiveAction {
+
+	private final int minBand, boundBand;
+	private final IntConsumer task;
+
+	BandAction(int minBand, int boundBand, IntConsumer task) {
+		this.minBand = minBand;
+		this.boundBand = boundBand;
+		this.task = task;
+	}
+
+	@Override
+	protected void compute() {
+		if (boundBand - minBand <= 1) {
+			for (int band = minBand; band < boundBand; band++) task.accept(band);
+		} else {
+			int middleBand = (minBand + boundBand) / 2;
+			invokeAll(new BandAction(minBand, middleBand, task), new BandAction(middleBand, boundBand, task));
+		}
+	}
+}
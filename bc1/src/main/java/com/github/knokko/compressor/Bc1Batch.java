@@ -0,0 +1,190 @@
+package com.github.knokko.compressor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Describes a batch of images that can be compressed using a single dispatch, by
+ * <i>Bc1Worker.compressBatch(recorder, descriptorSet, batch, source, destination)</i>.
+ * <p>
+ * The images are packed into 1 <i>atlas</i>: a large RGBA8 image in which the images are placed on shelves.
+ * The compute shader compresses the whole atlas at once, after which the compressed blocks of each image are copied
+ * to the destination buffer. In the destination buffer, the compressed images are stored right after each other, in
+ * the same order as the widths and heights that were passed to the constructor. Each compressed image has the same
+ * layout as it would have when it would be compressed by the non-batch <i>compress</i> method of <i>Bc1Worker</i>.
+ * </p>
+ * <p>
+ * The source buffer range must contain the atlas. You should use {@link #putSource(ByteBuffer, int, ByteBuffer)} to
+ * put each image at the right place in the atlas.
+ * </p>
+ */
+public class Bc1Batch {
+
+	private final int[] widths, heights;
+	private final int[] atlasX, atlasY;
+	private final long[] destinationOffsets;
+
+	/**
+	 * The width of the atlas, in pixels
+	 */
+	public final int atlasWidth;
+
+	/**
+	 * The height of the atlas, in pixels
+	 */
+	public final int atlasHeight;
+
+	/**
+	 * Plans a batch of images with the given sizes. Image {@code i} has width {@code widths[i]} and height
+	 * {@code heights[i]}, which must both be multiples of 4.
+	 */
+	public Bc1Batch(int[] widths, int[] heights) throws IllegalArgumentException {
+		if (widths.length != heights.length) {
+			throw new IllegalArgumentException("There are " + widths.length + " widths, but " + heights.length + " heights");
+		}
+		this.widths = widths.clone();
+		this.heights = heights.clone();
+		this.atlasX = new int[widths.length];
+		this.atlasY = new int[widths.length];
+		this.destinationOffsets = new long[widths.length];
+
+		int maxWidth = 4;
+		long totalArea = 0;
+		long destinationOffset = 0;
+		for (int index = 0; index < widths.length; index++) {
+			int width = widths[index];
+			int height = heights[index];
+			if (width <= 0 || height <= 0 || width % 4 != 0 || height % 4 != 0) {
+				throw new IllegalArgumentException(
+						"Width (" + width + ") and height (" + height + ") must be positive multiples of 4"
+				);
+			}
+			maxWidth = Math.max(maxWidth, width);
+			totalArea += (long) width * height;
+			destinationOffsets[index] = destinationOffset;
+			destinationOffset += (long) width * height / 2;
+		}
+
+		// Aim for a square atlas, and place the tallest images first to waste less space on each shelf
+		int squareWidth = 4 * (int) Math.ceil(Math.sqrt(totalArea) / 4.0);
+		this.atlasWidth = Math.max(maxWidth, squareWidth);
+
+		Integer[] order = new Integer[widths.length];
+		for (int index = 0; index < order.length; index++) order[index] = index;
+		Arrays.sort(order, Comparator.comparingInt((Integer index) -> heights[index]).reversed());
+
+		int shelfX = 0;
+		int shelfY = 0;
+		int shelfHeight = 0;
+		for (int index : order) {
+			if (shelfX + widths[index] > atlasWidth) {
+				shelfX = 0;
+				shelfY += shelfHeight;
+				shelfHeight = 0;
+			}
+			atlasX[index] = shelfX;
+			atlasY[index] = shelfY;
+			shelfX += widths[index];
+			shelfHeight = Math.max(shelfHeight, heights[index]);
+		}
+		this.atlasHeight = Math.max(4, shelfY + shelfHeight);
+	}
+
+	/**
+	 * @return The number of images in this batch
+	 */
+	public int getNumImages() {
+		return widths.length;
+	}
+
+	/**
+	 * @return The minimum size of the source buffer range (that contains the atlas), in bytes
+	 */
+	public long getSourceSize() {
+		return 4L * atlasWidth * atlasHeight;
+	}
+
+	/**
+	 * @return The size of the compressed atlas, which is the minimum size of the transfer buffer of the worker
+	 */
+	long getCompressedAtlasSize() {
+		return (long) atlasWidth * atlasHeight / 2;
+	}
+
+	/**
+	 * @return The minimum size of the destination buffer range, in bytes, which is the sum of the compressed sizes
+	 * of all images
+	 */
+	public long getDestinationSize() {
+		int last = widths.length - 1;
+		return last >= 0 ? destinationOffsets[last] + (long) widths[last] * heights[last] / 2 : 0L;
+	}
+
+	/**
+	 * @return The offset (in bytes, relative to the destination buffer range) where the compressed data of image
+	 * {@code imageIndex} will be stored
+	 */
+	public long getDestinationOffset(int imageIndex) {
+		return destinationOffsets[imageIndex];
+	}
+
+	/**
+	 * Copies the RGBA8 pixels of image {@code imageIndex} from {@code rgba} to its place in {@code atlas}. This
+	 * method uses absolute indexing on {@code atlas}, starting at its position, and it will increase the position of
+	 * {@code rgba} by {@code 4 * width * height}.
+	 * @param atlas The host buffer of the source buffer range, for instance obtained using
+	 * {@code memByteBuffer(mappedSource.hostAddress(), (int) batch.getSourceSize())}
+	 * @param imageIndex The index of the image in this batch
+	 * @param rgba The pixels of the image, in row-major order, with 1 byte per component
+	 */
+	public void putSource(ByteBuffer atlas, int imageIndex, ByteBuffer rgba) {
+		int width = widths[imageIndex];
+		int rowSize = 4 * width;
+		if (rgba.remaining() < rowSize * heights[imageIndex]) {
+			throw new IllegalArgumentException(
+					"Expected at least " + rowSize * heights[imageIndex] + " bytes, but got " + rgba.remaining()
+			);
+		}
+		for (int y = 0; y < heights[imageIndex]; y++) {
+			int atlasIndex = atlas.position() + 4 * (atlasX[imageIndex] + atlasWidth * (atlasY[imageIndex] + y));
+			atlas.put(atlasIndex, rgba, rgba.position(), rowSize);
+			rgba.position(rgba.position() + rowSize);
+		}
+	}
+
+	/**
+	 * Computes the regions that need to be copied from the compressed atlas to the destination buffer range. Each
+	 * region is stored as 3 consecutive longs: the offset in the compressed atlas, the offset in the destination
+	 * range, and the size (all in bytes). Consecutive regions are merged when possible.
+	 */
+	long[] getCopyRegions() {
+		long[] regions = new long[0];
+		int numRegions = 0;
+		// Each row of 4x4 blocks takes 8 bytes per block, which is 2 bytes per pixel column
+		long atlasBlockRowSize = 2L * atlasWidth;
+		for (int index = 0; index < widths.length; index++) {
+			long imageBlockRowSize = 2L * widths[index];
+			for (int blockY = 0; blockY < heights[index] / 4; blockY++) {
+				long sourceOffset = atlasBlockRowSize * (atlasY[index] / 4 + blockY) + 2L * atlasX[index];
+				long destinationOffset = destinationOffsets[index] + imageBlockRowSize * blockY;
+				long size = imageBlockRowSize;
+
+				if (numRegions > 0) {
+					int last = 3 * (numRegions - 1);
+					long lastSize = regions[last + 2];
+					if (regions[last] + lastSize == sourceOffset && regions[last + 1] + lastSize == destinationOffset) {
+						regions[last + 2] += size;
+						continue;
+					}
+				}
+				if (3 * numRegions == regions.length) regions = Arrays.copyOf(regions, Math.max(30, 2 * regions.length));
+				regions[3 * numRegions] = sourceOffset;
+				regions[3 * numRegions + 1] = destinationOffset;
+				regions[3 * numRegions + 2] = size;
+				numRegions += 1;
+			}
+		}
+		return Arrays.copyOf(regions, 3 * numRegions);
+	}
+}
@@ -0,0 +1,183 @@
+package com.github.knokko.compressor;
+
+import com.github.knokko.boiler.buffers.MappedVkbBuffer;
+import com.github.knokko.boiler.commands.CommandRecorder;
+import com.github.knokko.boiler.queues.VkbQueue;
+import com.github.knokko.boiler.synchronization.VkbFence;
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+import static com.github.knokko.boiler.exceptions.VulkanFailureException.assertVkSuccess;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.system.MemoryUtil.memByteBuffer;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A thread-safe service that compresses images from host memory to BC1, and returns the compressed bytes. It owns a
+ * bounded pool of <i>Bc1Worker</i>s, each with its own descriptor set, command pool, fence, and staging buffers, so
+ * any number of threads can submit images concurrently. When the compute queue family of the device has multiple
+ * queues, the workers are spread over these queues.
+ * <p>
+ * Each worker has its own thread, which records and submits the commands, and waits until they have completed.
+ * </p>
+ */
+public class Bc1CompressionService {
+
+	private final Bc1Compressor compressor;
+	private final BlockingQueue<Slot> idleSlots;
+	private final Slot[] slots;
+	private final ExecutorService executor;
+
+	/**
+	 * Constructs a new service with {@code numWorkers} workers, which will immediately create all their Vulkan
+	 * objects, except the staging buffers (which will be created and grown on demand).
+	 * @param compressor The compressor whose pipeline and descriptor bank should be used
+	 * @param numWorkers The maximum number of images that can be compressed concurrently
+	 */
+	public Bc1CompressionService(Bc1Compressor compressor, int numWorkers) {
+		if (numWorkers <= 0) throw new IllegalArgumentException("numWorkers must be positive, but is " + numWorkers);
+		this.compressor = compressor;
+		this.idleSlots = new ArrayBlockingQueue<>(numWorkers);
+		this.slots = new Slot[numWorkers];
+
+		var boiler = compressor.boiler;
+		var queueFamily = boiler.queueFamilies().compute();
+		for (int index = 0; index < numWorkers; index++) {
+			long commandPool = boiler.commands.createPool(
+					VK_COMMAND_POOL_CREATE_TRANSIENT_BIT, queueFamily.index(), "Bc1ServicePool" + index
+			);
+			slots[index] = new Slot(
+					new Bc1Worker(compressor), compressor.descriptorBank.borrowDescriptorSet("Bc1Service" + index),
+					commandPool, boiler.commands.createPrimaryBuffers(commandPool, 1, "Bc1Service" + index)[0],
+					boiler.sync.fenceBank.borrowFence(false, "Bc1ServiceFence" + index),
+					queueFamily.queues().get(index % queueFamily.queues().size())
+			);
+			idleSlots.add(slots[index]);
+		}
+
+		this.executor = Executors.newFixedThreadPool(numWorkers, task -> {
+			var thread = new Thread(task, "Bc1CompressionService");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Compresses the given RGBA8 image to BC1 asynchronously.
+	 * @param rgba The pixels of the image, in row-major order, with 1 byte per component. The image data starts at
+	 *             the position of the buffer. You must not modify the data until the returned future has completed,
+	 *             but the position of the buffer will <b>not</b> be changed.
+	 * @param width The width of the image, in pixels, must be a multiple of 4
+	 * @param height The height of the image, in pixels, must be a multiple of 4
+	 * @return A future that will be completed with the compressed data ({@code width * height / 2} bytes), in the
+	 * same layout as <i>Bc1Worker.compress</i> produces
+	 * @throws IllegalArgumentException When the size is invalid, or when <i>rgba</i> is too small
+	 */
+	public CompletableFuture<byte[]> compress(ByteBuffer rgba, int width, int height) throws IllegalArgumentException {
+		if (width <= 0 || height <= 0 || width % 4 != 0 || height % 4 != 0) {
+			throw new IllegalArgumentException("Width (" + width + ") and height (" + height + ") must be a multiple of 4");
+		}
+		if (rgba.remaining() < 4L * width * height) {
+			throw new IllegalArgumentException("Expected at least " + (4L * width * height) + " bytes, but got " + rgba.remaining());
+		}
+
+		ByteBuffer source = rgba.slice();
+		return CompletableFuture.supplyAsync(() -> {
+			Slot slot = idleSlots.poll();
+			// This should never happen, since the executor has exactly 1 thread per slot
+			if (slot == null) throw new IllegalStateException("No idle Bc1 worker");
+			try {
+				return slot.compress(source, width, height);
+			} finally {
+				idleSlots.add(slot);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Waits until all submitted images have been compressed, and destroys the Vulkan objects of all workers. You
+	 * must call this before destroying the <i>Bc1Compressor</i>.
+	 */
+	public void destroy() throws InterruptedException {
+		executor.shutdown();
+		//noinspection ResultOfMethodCallIgnored
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		for (Slot slot : slots) slot.destroy();
+	}
+
+	private class Slot {
+
+		final Bc1Worker worker;
+		final long descriptorSet;
+		final long commandPool;
+		final VkCommandBuffer commandBuffer;
+		final VkbFence fence;
+		final VkbQueue queue;
+
+		MappedVkbBuffer sourceBuffer, destinationBuffer;
+
+		Slot(
+				Bc1Worker worker, long descriptorSet, long commandPool,
+				VkCommandBuffer commandBuffer, VkbFence fence, VkbQueue queue
+		) {
+			this.worker = worker;
+			this.descriptorSet = descriptorSet;
+			this.commandPool = commandPool;
+			this.commandBuffer = commandBuffer;
+			this.fence = fence;
+			this.queue = queue;
+		}
+
+		byte[] compress(ByteBuffer rgba, int width, int height) {
+			var boiler = compressor.boiler;
+			long sourceSize = 4L * width * height;
+			long destinationSize = (long) width * height / 2;
+			if (sourceBuffer == null || sourceBuffer.size() < sourceSize) {
+				if (sourceBuffer != null) sourceBuffer.destroy(boiler);
+				sourceBuffer = boiler.buffers.createMapped(sourceSize, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT, "Bc1ServiceSource");
+			}
+			if (destinationBuffer == null || destinationBuffer.size() < destinationSize) {
+				if (destinationBuffer != null) destinationBuffer.destroy(boiler);
+				destinationBuffer = boiler.buffers.createMapped(
+						destinationSize, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT, "Bc1ServiceDestination"
+				);
+			}
+
+			memByteBuffer(sourceBuffer.hostAddress(), (int) sourceSize).put(rgba.duplicate().limit((int) sourceSize));
+
+			try (var stack = stackPush()) {
+				assertVkSuccess(vkResetCommandPool(
+						boiler.vkDevice(), commandPool, 0
+				), "ResetCommandPool", "Bc1CompressionService");
+				var recorder = CommandRecorder.begin(commandBuffer, boiler, stack, "Bc1CompressionService");
+				worker.compress(
+						recorder, descriptorSet, sourceBuffer.range(0, sourceSize),
+						destinationBuffer.range(0, destinationSize), width, height
+				);
+				recorder.end();
+
+				// Multiple slots may share the same queue, and queue submissions must be externally synchronized
+				synchronized (queue) {
+					queue.submit(commandBuffer, "Bc1CompressionService", null, fence);
+				}
+				fence.waitAndReset(Long.MAX_VALUE);
+			}
+
+			byte[] result = new byte[(int) destinationSize];
+			memByteBuffer(destinationBuffer.hostAddress(), result.length).get(result);
+			return result;
+		}
+
+		void destroy() {
+			var boiler = compressor.boiler;
+			vkDestroyCommandPool(boiler.vkDevice(), commandPool, null);
+			boiler.sync.fenceBank.returnFence(fence);
+			worker.destroy();
+			compressor.descriptorBank.returnDescriptorSet(descriptorSet);
+			if (sourceBuffer != null) sourceBuffer.destroy(boiler);
+			if (destinationBuffer != null) destinationBuffer.destroy(boiler);
+		}
+	}
+}
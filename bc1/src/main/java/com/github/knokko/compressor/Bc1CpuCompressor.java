@@ -0,0 +1,475 @@
+package com.github.knokko.compressor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.lang.Math.*;
+
+/**
+ * A CPU port of the BC1 compute shader (<i>betsy-bc1.comp</i>) that is used by <i>Bc1Worker</i>. This class can
+ * compress images to BC1 without needing a Vulkan device, for instance on build machines without GPU. It uses the
+ * same <i>match.bin</i> tables and the same implicit 1-bit alpha channel as the shader, and it does its computations
+ * with 32-bit floats, just like the shader. The results should be (almost) identical to those of the GPU, although
+ * GPUs may use slightly different floating-point rounding.
+ */
+public class Bc1CpuCompressor {
+
+	/**
+	 * The number of refinements that <i>Bc1Worker</i> passes to the compute shader
+	 */
+	public static final int DEFAULT_NUM_REFINEMENTS = 2;
+
+	private static final float FLT_MAX = Float.MAX_VALUE;
+	private static final float[] W1_TAB = { 3, 0, 2, 1 };
+	private static final float[] PRODS = { 589824f, 2304f, 262402f, 66562f };
+
+	/**
+	 * The {@code c_oMatch5} and {@code c_oMatch6} tables of the shader, where the 2 floats of entry {@code i} are
+	 * stored at index {@code 2 * i} and {@code 2 * i + 1}
+	 */
+	private static final float[] MATCH5 = new float[512];
+	private static final float[] MATCH6 = new float[512];
+
+	static {
+		try (InputStream matchInput = Bc1CpuCompressor.class.getResourceAsStream("match.bin")) {
+			var matchBuffer = ByteBuffer.wrap(Objects.requireNonNull(matchInput).readAllBytes());
+			matchBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			for (int index = 0; index < 512; index++) MATCH5[index] = matchBuffer.getFloat();
+			for (int index = 0; index < 512; index++) MATCH6[index] = matchBuffer.getFloat();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read match.bin", e);
+		}
+	}
+
+	/**
+	 * Compresses the RGBA data (1 byte per component) from <i>source</i>, and stores the compressed BC1 data in
+	 * <i>destination</i>. The layout of the compressed data is the same as that of
+	 * <i>Bc1Worker.compress(recorder, descriptorSet, source, destination, width, height)</i>. This method will
+	 * increase the positions of <i>source</i> and <i>destination</i> by {@code 4 * width * height} and
+	 * {@code width * height / 2} respectively.
+	 * @param source The RGBA8 image data, starting at the position of the buffer
+	 * @param width The width of the image, in pixels, must be a multiple of 4
+	 * @param height The height of the image, in pixels, must be a multiple of 4
+	 * @param destination The buffer to which the compressed data will be written, starting at its position
+	 * @param numRefinements The number of refinement iterations, normally {@link #DEFAULT_NUM_REFINEMENTS}
+	 */
+	public static void compress(
+			ByteBuffer source, int width, int height, ByteBuffer destination, int numRefinements
+	) throws IllegalArgumentException {
+		validate(source, width, height, destination);
+		compressBlockRows(source, width, 0, height / 4, destination, numRefinements);
+		source.position(source.position() + 4 * width * height);
+		destination.position(destination.position() + width * height / 2);
+	}
+
+	/**
+	 * Compresses the RGBA data (1 byte per component) from <i>source</i> in parallel, and stores the compressed BC1
+	 * data in <i>destination</i>. The result is identical to that of
+	 * {@link #compress(ByteBuffer, int, int, ByteBuffer, int)}, which is also the method that explains the
+	 * parameters. The rows of 4x4 blocks are divided over the threads of <i>pool</i>.
+	 * @param pool The pool whose threads should be used to compress the image
+	 */
+	public static void compress(
+			ForkJoinPool pool, ByteBuffer source, int width, int height, ByteBuffer destination, int numRefinements
+	) throws IllegalArgumentException {
+		validate(source, width, height, destination);
+		int numBlockRows = height / 4;
+		int rowsPerBand = max(1, numBlockRows / (4 * pool.getParallelism()));
+		int numBands = (numBlockRows + rowsPerBand - 1) / rowsPerBand;
+		pool.invoke(new BandAction(0, numBands, band -> compressBlockRows(
+				source, width, band * rowsPerBand, min(numBlockRows, (band + 1) * rowsPerBand),
+				destination, numRefinements
+		)));
+		source.position(source.position() + 4 * width * height);
+		destination.position(destination.position() + width * height / 2);
+	}
+
+	private static void validate(ByteBuffer source, int width, int height, ByteBuffer destination) {
+		if (width % 4 != 0 || height % 4 != 0) {
+			throw new IllegalArgumentException("Width (" + width + ") and height (" + height + ") must be a multiple of 4");
+		}
+		if (4L * width * height > source.remaining()) throw new IllegalArgumentException("Source buffer is too small");
+		if ((long) width * height / 2 > destination.remaining()) {
+			throw new IllegalArgumentException("Destination buffer is too small");
+		}
+	}
+
+	private static void compressBlockRows(
+			ByteBuffer source, int width, int minBlockY, int boundBlockY,
+			ByteBuffer destination, int numRefinements
+	) {
+		// Use little-endian duplicates so that each pixel is a single int, like in the shader
+		ByteBuffer input = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer output = destination.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int inputOffset = source.position();
+		int outputOffset = destination.position();
+
+		var scratch = new BlockScratch();
+		for (int blockY = minBlockY; blockY < boundBlockY; blockY++) {
+			for (int blockX = 0; blockX < width / 4; blockX++) {
+				for (int index = 0; index < 16; index++) {
+					int x = 4 * blockX + (index & 3);
+					int y = 4 * blockY + (index >> 2);
+					scratch.pixels[index] = input.getInt(inputOffset + 4 * (x + width * y));
+				}
+				output.putLong(outputOffset + 8 * (blockX + (width / 4) * blockY), compressBlock(scratch, numRefinements));
+			}
+		}
+	}
+
+	/**
+	 * The arrays that {@link #compressBlock} needs, which are allocated once per band rather than once per block
+	 */
+	private static class BlockScratch {
+
+		/**
+		 * The 16 pixels of the current block, which {@link #compressBlock} overwrites
+		 */
+		final int[] pixels = new int[16];
+
+		final float[] endpoints = new float[2];
+		final float[] colors = new float[12];
+		final float[] cov = new float[6];
+		final float[] stops = new float[4];
+	}
+
+	/**
+	 * Compresses a single 4x4 block, just like the <i>main</i> function of the shader
+	 * @param sourcePixels The 16 pixels of the block, in row-major order, where the red component is stored in the
+	 *                     least significant byte, and the alpha component in the most significant byte
+	 * @return The 8 bytes of the compressed block, in little-endian order
+	 */
+	static long compressBlock(int[] sourcePixels, int numRefinements) {
+		var scratch = new BlockScratch();
+		System.arraycopy(sourcePixels, 0, scratch.pixels, 0, 16);
+		return compressBlock(scratch, numRefinements);
+	}
+
+	/**
+	 * Compresses the 4x4 block in {@code scratch.pixels}, which will be overwritten
+	 */
+	private static long compressBlock(BlockScratch scratch, int numRefinements) {
+		int[] pixels = scratch.pixels;
+		boolean allColorsEqual = true;
+		int alphaMask = 0;
+		int solidColor = 0;
+		for (int index = 0; index < 16; index++) {
+			int rgba = pixels[index];
+			if ((rgba >>> 24) > 130) {
+				rgba |= 255 << 24;
+				solidColor = rgba;
+				pixels[index] = rgba;
+				allColorsEqual = allColorsEqual && pixels[0] == rgba;
+			} else {
+				alphaMask |= 1 << index;
+				pixels[index] = 0;
+			}
+		}
+
+		if (alphaMask != 0 && solidColor != 0) {
+			for (int index = 0; index < 16; index++) {
+				if ((alphaMask & (1 << index)) != 0) pixels[index] = solidColor;
+			}
+		}
+
+		// endpoints[0] is the minimum endpoint, and endpoints[1] is the maximum endpoint, both in RGB565
+		float[] endpoints = scratch.endpoints;
+		int mask = 0;
+
+		if (allColorsEqual) {
+			int red = pixels[0] & 255;
+			int green = (pixels[0] >> 8) & 255;
+			int blue = (pixels[0] >> 16) & 255;
+			mask = 0xAAAAAAAA;
+			endpoints[1] = MATCH5[2 * red] * 2048f + MATCH6[2 * green] * 32f + MATCH5[2 * blue];
+			endpoints[0] = MATCH5[2 * red + 1] * 2048f + MATCH6[2 * green + 1] * 32f + MATCH5[2 * blue + 1];
+		} else {
+			optimizeColorsBlock(pixels, endpoints, scratch.cov);
+			if (endpoints[0] != endpoints[1]) {
+				mask = matchColorsBlock(pixels, evalColors(endpoints[1], endpoints[0], scratch.colors), scratch.stops);
+			}
+
+			boolean stopRefinement = false;
+			for (int counter = 0; counter < numRefinements && !stopRefinement; counter++) {
+				int lastMask = mask;
+				if (refineBlock(pixels, mask, endpoints)) {
+					if (endpoints[0] != endpoints[1]) {
+						mask = matchColorsBlock(pixels, evalColors(endpoints[1], endpoints[0], scratch.colors), scratch.stops);
+					} else {
+						mask = 0;
+						stopRefinement = true;
+					}
+				}
+				stopRefinement = mask == lastMask || stopRefinement;
+			}
+		}
+
+		if ((alphaMask == 0) == (endpoints[1] < endpoints[0])) {
+			mask ^= 0x55555555;
+			float temp = endpoints[0];
+			endpoints[0] = endpoints[1];
+			endpoints[1] = temp;
+		}
+
+		if (alphaMask != 0) {
+			for (int index = 0; index < 16; index++) {
+				int bitIndex = 2 * index;
+				if ((alphaMask & (1 << index)) != 0) {
+					mask |= 3 << bitIndex;
+				} else {
+					int localMask = (mask >> bitIndex) & 3;
+					if (localMask == 3) localMask = 2;
+					mask &= ~(3 << bitIndex);
+					mask |= localMask << bitIndex;
+				}
+			}
+		}
+
+		int endpointValue = (int) endpoints[1] | ((int) endpoints[0] << 16);
+		return (endpointValue & 0xFFFFFFFFL) | ((long) mask << 32);
+	}
+
+	private static float unorm(int rgba, int shift) {
+		return ((rgba >> shift) & 255) / 255f;
+	}
+
+	private static float component(int rgba, int shift) {
+		return (rgba >> shift) & 255;
+	}
+
+	private static float mod(float x, float y) {
+		return x - y * (float) floor(x / y);
+	}
+
+	private static float trunc(float x) {
+		return x < 0f ? (float) ceil(x) : (float) floor(x);
+	}
+
+	private static float rgb888to565(float red, float green, float blue) {
+		red = (float) floor(red * 31f / 255f + 0.5f);
+		green = (float) floor(green * 63f / 255f + 0.5f);
+		blue = (float) floor(blue * 31f / 255f + 0.5f);
+		return red * 2048f + green * 32f + blue;
+	}
+
+	/**
+	 * Stores the 888 color of the RGB565 color {@code rgb565} at {@code colors[offset]}, using the conversion of
+	 * stb_dxt (see the shader for details)
+	 */
+	private static void rgb565to888(float rgb565, float[] colors, int offset) {
+		colors[offset] = (float) floor((float) floor(rgb565 / 2048f) * 8.25f);
+		colors[offset + 1] = (float) floor((float) floor(mod(rgb565, 2048f) / 32f) * 4.0625f);
+		colors[offset + 2] = (float) floor((float) floor(mod(rgb565, 32f)) * 8.25f);
+	}
+
+	/**
+	 * Unpacks a block of 4 colors from 2 RGB565 endpoints into {@code colors}, where color {@code i} is stored at
+	 * {@code 3 * i}
+	 */
+	private static float[] evalColors(float c0, float c1, float[] colors) {
+		rgb565to888(c0, colors, 0);
+		rgb565to888(c1, colors, 3);
+		for (int component = 0; component < 3; component++) {
+			float a = colors[component];
+			float b = colors[3 + component];
+			colors[6 + component] = (float) floor((2f * a + b) / 3f);
+			colors[9 + component] = (float) floor((2f * b + a) / 3f);
+		}
+		return colors;
+	}
+
+	/**
+	 * The color optimization function: finds the principal axis of the colors, and stores the extreme colors along
+	 * that axis in {@code endpoints} (minimum first, both in RGB565)
+	 */
+	private static void optimizeColorsBlock(int[] pixels, float[] endpoints, float[] cov) {
+		float avgRed = unorm(pixels[0], 0), avgGreen = unorm(pixels[0], 8), avgBlue = unorm(pixels[0], 16);
+		float minRed = avgRed, minGreen = avgGreen, minBlue = avgBlue;
+		float maxRed = avgRed, maxGreen = avgGreen, maxBlue = avgBlue;
+		for (int index = 1; index < 16; index++) {
+			float red = unorm(pixels[index], 0), green = unorm(pixels[index], 8), blue = unorm(pixels[index], 16);
+			avgRed += red;
+			avgGreen += green;
+			avgBlue += blue;
+			minRed = min(minRed, red);
+			minGreen = min(minGreen, green);
+			minBlue = min(minBlue, blue);
+			maxRed = max(maxRed, red);
+			maxGreen = max(maxGreen, green);
+			maxBlue = max(maxBlue, blue);
+		}
+
+		avgRed = round(avgRed * 255f / 16f);
+		avgGreen = round(avgGreen * 255f / 16f);
+		avgBlue = round(avgBlue * 255f / 16f);
+
+		// determine covariance matrix
+		Arrays.fill(cov, 0f);
+		for (int pixel : pixels) {
+			float diffRed = component(pixel, 0) - avgRed;
+			float diffGreen = component(pixel, 8) - avgGreen;
+			float diffBlue = component(pixel, 16) - avgBlue;
+
+			cov[0] += diffRed * diffRed;
+			cov[1] += diffRed * diffGreen;
+			cov[2] += diffRed * diffBlue;
+			cov[3] += diffGreen * diffGreen;
+			cov[4] += diffGreen * diffBlue;
+			cov[5] += diffBlue * diffBlue;
+		}
+		for (int index = 0; index < 6; index++) cov[index] /= 255f;
+
+		// find principal axis via power iteration
+		float vfRed = maxRed * 255f - minRed * 255f;
+		float vfGreen = maxGreen * 255f - minGreen * 255f;
+		float vfBlue = maxBlue * 255f - minBlue * 255f;
+		for (int iteration = 0; iteration < 4; iteration++) {
+			float red = vfRed * cov[0] + vfGreen * cov[1] + vfBlue * cov[2];
+			float green = vfRed * cov[1] + vfGreen * cov[3] + vfBlue * cov[4];
+			float blue = vfRed * cov[2] + vfGreen * cov[4] + vfBlue * cov[5];
+			vfRed = red;
+			vfGreen = green;
+			vfBlue = blue;
+		}
+
+		float magnitude = max(abs(vfRed), max(abs(vfGreen), abs(vfBlue)));
+		float vRed, vGreen, vBlue;
+		if (magnitude < 4f) {
+			// too small, default to luminance (JPEG YCbCr luma coefficients, scaled by 1000)
+			vRed = 299f;
+			vGreen = 587f;
+			vBlue = 114f;
+		} else {
+			float scale = 512f / magnitude;
+			vRed = trunc(vfRed * scale);
+			vGreen = trunc(vfGreen * scale);
+			vBlue = trunc(vfBlue * scale);
+		}
+
+		// pick colors at extreme points
+		int minEndpoint = 0, maxEndpoint = 0;
+		float minDot = FLT_MAX;
+		float maxDot = -FLT_MAX;
+		for (int pixel : pixels) {
+			float dotValue = component(pixel, 0) * vRed + component(pixel, 8) * vGreen + component(pixel, 16) * vBlue;
+			if (dotValue < minDot) {
+				minDot = dotValue;
+				minEndpoint = pixel;
+			}
+			if (dotValue > maxDot) {
+				maxDot = dotValue;
+				maxEndpoint = pixel;
+			}
+		}
+
+		endpoints[0] = rgb888to565(component(minEndpoint, 0), component(minEndpoint, 8), component(minEndpoint, 16));
+		endpoints[1] = rgb888to565(component(maxEndpoint, 0), component(maxEndpoint, 8), component(maxEndpoint, 16));
+	}
+
+	/**
+	 * The color matching function: chooses the index of each pixel by projecting it onto the line between the colors
+	 */
+	private static int matchColorsBlock(int[] pixels, float[] colors, float[] stops) {
+		float dirRed = colors[0] - colors[3];
+		float dirGreen = colors[1] - colors[4];
+		float dirBlue = colors[2] - colors[5];
+
+		for (int index = 0; index < 4; index++) {
+			stops[index] = colors[3 * index] * dirRed + colors[3 * index + 1] * dirGreen + colors[3 * index + 2] * dirBlue;
+		}
+
+		float c0Point = trunc((stops[1] + stops[3]) * 0.5f);
+		float halfPoint = trunc((stops[3] + stops[2]) * 0.5f);
+		float c3Point = trunc((stops[2] + stops[0]) * 0.5f);
+
+		int mask = 0;
+		for (int index = 15; index >= 0; index--) {
+			int pixel = pixels[index];
+			float dotValue = component(pixel, 0) * dirRed + component(pixel, 8) * dirGreen + component(pixel, 16) * dirBlue;
+			mask <<= 2;
+
+			if (dotValue < halfPoint) mask |= dotValue < c0Point ? 1 : 3;
+			else mask |= dotValue < c3Point ? 2 : 0;
+		}
+		return mask;
+	}
+
+	/**
+	 * The refinement function: tries to optimize the {@code endpoints} by solving a least squares system
+	 * @return true if the endpoints were changed
+	 */
+	private static boolean refineBlock(int[] pixels, int mask, float[] endpoints) {
+		float oldMin = endpoints[0];
+		float oldMax = endpoints[1];
+		float newMin, newMax;
+
+		if (Integer.compareUnsigned(mask ^ (mask << 2), 4) < 0) {
+			// all pixels have the same index, so the linear system would be singular:
+			// use the optimal single-color match on the average color instead
+			float red = 8f / 255f, green = 8f / 255f, blue = 8f / 255f;
+			for (int pixel : pixels) {
+				red += unorm(pixel, 0);
+				green += unorm(pixel, 8);
+				blue += unorm(pixel, 16);
+			}
+			int intRed = (int) floor(red * (255f / 16f));
+			int intGreen = (int) floor(green * (255f / 16f));
+			int intBlue = (int) floor(blue * (255f / 16f));
+
+			newMax = MATCH5[2 * intRed] * 2048f + MATCH6[2 * intGreen] * 32f + MATCH5[2 * intBlue];
+			newMin = MATCH5[2 * intRed + 1] * 2048f + MATCH6[2 * intGreen + 1] * 32f + MATCH5[2 * intBlue + 1];
+		} else {
+			float akku = 0f;
+			int cm = mask;
+			float at1Red = 0f, at1Green = 0f, at1Blue = 0f;
+			float at2Red = 0f, at2Green = 0f, at2Blue = 0f;
+			for (int pixel : pixels) {
+				int step = cm & 3;
+				float w1 = W1_TAB[step];
+				akku += PRODS[step];
+				at1Red += component(pixel, 0) * w1;
+				at1Green += component(pixel, 8) * w1;
+				at1Blue += component(pixel, 16) * w1;
+				at2Red += component(pixel, 0);
+				at2Green += component(pixel, 8);
+				at2Blue += component(pixel, 16);
+				cm >>>= 2;
+			}
+
+			at2Red = 3f * at2Red - at1Red;
+			at2Green = 3f * at2Green - at1Green;
+			at2Blue = 3f * at2Blue - at1Blue;
+
+			// extract solutions and decide solvability
+			float xx = (float) floor(akku / 65535f);
+			float yy = (float) floor(mod(akku, 65535f) / 256f);
+			float xy = mod(akku, 256f);
+
+			float factorRB = 3f * 31f / 255f / (xx * yy - xy * xy);
+			float factorG = factorRB * 63f / 31f;
+
+			float newMaxRed = clamp((float) floor((at1Red * yy - at2Red * xy) * factorRB + 0.5f), 31f);
+			float newMaxGreen = clamp((float) floor((at1Green * yy - at2Green * xy) * factorG + 0.5f), 63f);
+			float newMaxBlue = clamp((float) floor((at1Blue * yy - at2Blue * xy) * factorRB + 0.5f), 31f);
+			newMax = newMaxRed * 2048f + newMaxGreen * 32f + newMaxBlue;
+
+			float newMinRed = clamp((float) floor((at2Red * xx - at1Red * xy) * factorRB + 0.5f), 31f);
+			float newMinGreen = clamp((float) floor((at2Green * xx - at1Green * xy) * factorG + 0.5f), 63f);
+			float newMinBlue = clamp((float) floor((at2Blue * xx - at1Blue * xy) * factorRB + 0.5f), 31f);
+			newMin = newMinRed * 2048f + newMinGreen * 32f + newMinBlue;
+		}
+
+		endpoints[0] = newMin;
+		endpoints[1] = newMax;
+		return oldMin != newMin || oldMax != newMax;
+	}
+
+	private static float clamp(float value, float maxValue) {
+		return min(max(value, 0f), maxValue);
+	}
+}
@@ -0,0 +1,192 @@
+package com.github.knokko.compressor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+/**
+ * This class can decompress BC1 images on the CPU, for instance to check or preview the results of <i>Bc1Worker</i>
+ * or <i>Bc1CpuCompressor</i> without rendering them. It supports both the 4-color mode and the 3-color + transparent
+ * mode of BC1. The endpoints are expanded from RGB565 to RGB888 using bit replication, and the interpolated colors are
+ * rounded to the nearest integer. Note that GPUs may round the interpolated colors slightly differently.
+ * <p>
+ * All methods expect the compressed data in the layout of <i>Bc1Worker</i>: 8 bytes per 4x4 block, in row-major
+ * block order. All <i>decompress</i> methods have an overload that takes a <i>ForkJoinPool</i>, which will decode
+ * the rows of blocks in parallel.
+ * </p>
+ */
+public class Bc1Decompressor {
+
+	private static final int MIN_BLOCKS_PER_BAND = 1024;
+
+	/**
+	 * Decompresses the BC1 image in <i>compressed</i> to a new <i>BufferedImage</i> of type
+	 * <i>TYPE_INT_ARGB</i>. This method will increase the position of <i>compressed</i> by
+	 * {@code width * height / 2}.
+	 * @param width The width of the image, in pixels, must be a multiple of 4
+	 * @param height The height of the image, in pixels, must be a multiple of 4
+	 */
+	public static BufferedImage decompress(ByteBuffer compressed, int width, int height) {
+		return decompress(null, compressed, width, height);
+	}
+
+	/**
+	 * Like {@link #decompress(ByteBuffer, int, int)}, but decodes the blocks in parallel on <i>pool</i>
+	 */
+	public static BufferedImage decompress(ForkJoinPool pool, ByteBuffer compressed, int width, int height) {
+		validateSize(width, height);
+		var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		decompress(pool, compressed, width, height, IntBuffer.wrap(pixels), true);
+		return image;
+	}
+
+	/**
+	 * Decompresses the BC1 image in <i>compressed</i>, and stores the pixels in <i>output</i>, packed using
+	 * {@link com.github.knokko.boiler.utilities.ColorPacker}. This method will increase the position of
+	 * <i>compressed</i> by {@code width * height / 2}, and the position of <i>output</i> by {@code width * height}.
+	 * @param width The width of the image, in pixels, must be a multiple of 4
+	 * @param height The height of the image, in pixels, must be a multiple of 4
+	 */
+	public static void decompress(ByteBuffer compressed, int width, int height, IntBuffer output) {
+		decompress(null, compressed, width, height, output);
+	}
+
+	/**
+	 * Like {@link #decompress(ByteBuffer, int, int, IntBuffer)}, but decodes the blocks in parallel on <i>pool</i>
+	 */
+	public static void decompress(ForkJoinPool pool, ByteBuffer compressed, int width, int height, IntBuffer output) {
+		validateSize(width, height);
+		decompress(pool, compressed, width, height, output, false);
+	}
+
+	/**
+	 * Decompresses the BC1 image in <i>compressed</i>, and stores the pixels in <i>rgba8</i>, using 1 byte per
+	 * component, in RGBA order. This method will increase the position of <i>compressed</i> by
+	 * {@code width * height / 2}, and the position of <i>rgba8</i> by {@code 4 * width * height}.
+	 * @param width The width of the image, in pixels, must be a multiple of 4
+	 * @param height The height of the image, in pixels, must be a multiple of 4
+	 */
+	public static void decompress(ByteBuffer compressed, int width, int height, ByteBuffer rgba8) {
+		decompress(null, compressed, width, height, rgba8);
+	}
+
+	/**
+	 * Like {@link #decompress(ByteBuffer, int, int, ByteBuffer)}, but decodes the blocks in parallel on <i>pool</i>
+	 */
+	public static void decompress(ForkJoinPool pool, ByteBuffer compressed, int width, int height, ByteBuffer rgba8) {
+		validateSize(width, height);
+		int numBytes = 4 * width * height;
+		if (rgba8.remaining() < numBytes) {
+			throw new IllegalArgumentException("Expected at least " + numBytes + " bytes, but got " + rgba8.remaining());
+		}
+
+		// Packed ColorPacker values in little-endian order are exactly RGBA8
+		var output = rgba8.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		decompress(pool, compressed, width, height, output, false);
+		rgba8.position(rgba8.position() + numBytes);
+	}
+
+	private static void validateSize(int width, int height) {
+		if (width < 0 || height < 0 || width % 4 != 0 || height % 4 != 0) {
+			throw new IllegalArgumentException("Width (" + width + ") and height (" + height + ") must be a multiple of 4");
+		}
+	}
+
+	private static void decompress(
+			ForkJoinPool pool, ByteBuffer compressed, int width, int height, IntBuffer output, boolean argb
+	) {
+		int numBlocksX = width / 4;
+		int numBlockRows = height / 4;
+		int numBytes = width * height / 2;
+		if (compressed.remaining() < numBytes) {
+			throw new IllegalArgumentException("Expected at least " + numBytes + " bytes, but got " + compressed.remaining());
+		}
+		if (output.remaining() < width * height) {
+			throw new IllegalArgumentException("Expected at least " + (width * height) + " pixels, but got " + output.remaining());
+		}
+
+		var input = compressed.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int inputOffset = compressed.position();
+		int outputOffset = output.position();
+
+		IntConsumer decodeBlockRow = blockY -> {
+			int[] palette = new int[4];
+			for (int blockX = 0; blockX < numBlocksX; blockX++) {
+				int blockOffset = inputOffset + 8 * (blockX + numBlocksX * blockY);
+				createPalette(input.getInt(blockOffset), palette, argb);
+				int indices = input.getInt(blockOffset + 4);
+				for (int offsetY = 0; offsetY < 4; offsetY++) {
+					int rowOffset = outputOffset + 4 * blockX + width * (4 * blockY + offsetY);
+					for (int offsetX = 0; offsetX < 4; offsetX++) {
+						output.put(rowOffset + offsetX, palette[(indices >>> (2 * (offsetX + 4 * offsetY))) & 3]);
+					}
+				}
+			}
+		};
+
+		if (pool == null || numBlocksX * numBlockRows < 2 * MIN_BLOCKS_PER_BAND) {
+			for (int blockY = 0; blockY < numBlockRows; blockY++) decodeBlockRow.accept(blockY);
+		} else {
+			int rowsPerBand = max(
+					(MIN_BLOCKS_PER_BAND + numBlocksX - 1) / numBlocksX,
+					numBlockRows / (4 * pool.getParallelism()) + 1
+			);
+			int numBands = (numBlockRows + rowsPerBand - 1) / rowsPerBand;
+			pool.invoke(new BandAction(0, numBands, band -> {
+				int boundBlockY = min(numBlockRows, (band + 1) * rowsPerBand);
+				for (int blockY = band * rowsPerBand; blockY < boundBlockY; blockY++) decodeBlockRow.accept(blockY);
+			}));
+		}
+
+		compressed.position(inputOffset + numBytes);
+		output.position(outputOffset + width * height);
+	}
+
+	/**
+	 * Decodes the 4 colors of a block whose endpoints are {@code endpoints}, and stores them in {@code palette}, either
+	 * in ARGB format (for <i>BufferedImage</i>s), or packed using
+	 * {@link com.github.knokko.boiler.utilities.ColorPacker}
+	 */
+	private static void createPalette(int endpoints, int[] palette, boolean argb) {
+		int color0 = endpoints & 0xFFFF;
+		int color1 = endpoints >>> 16;
+
+		int red0 = expand5(color0 >> 11), green0 = expand6((color0 >> 5) & 63), blue0 = expand5(color0 & 31);
+		int red1 = expand5(color1 >> 11), green1 = expand6((color1 >> 5) & 63), blue1 = expand5(color1 & 31);
+
+		palette[0] = pack(red0, green0, blue0, 255, argb);
+		palette[1] = pack(red1, green1, blue1, 255, argb);
+		if (color0 > color1) {
+			palette[2] = pack(
+					(2 * red0 + red1 + 1) / 3, (2 * green0 + green1 + 1) / 3, (2 * blue0 + blue1 + 1) / 3, 255, argb
+			);
+			palette[3] = pack(
+					(red0 + 2 * red1 + 1) / 3, (green0 + 2 * green1 + 1) / 3, (blue0 + 2 * blue1 + 1) / 3, 255, argb
+			);
+		} else {
+			palette[2] = pack((red0 + red1 + 1) / 2, (green0 + green1 + 1) / 2, (blue0 + blue1 + 1) / 2, 255, argb);
+			palette[3] = 0;
+		}
+	}
+
+	private static int expand5(int value) {
+		return (value << 3) | (value >> 2);
+	}
+
+	private static int expand6(int value) {
+		return (value << 2) | (value >> 4);
+	}
+
+	private static int pack(int red, int green, int blue, int alpha, boolean argb) {
+		if (argb) return (alpha << 24) | (red << 16) | (green << 8) | blue;
+		else return red | (green << 8) | (blue << 16) | (alpha << 24);
+	}
+}
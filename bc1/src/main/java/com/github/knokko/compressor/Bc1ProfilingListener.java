@@ -0,0 +1,19 @@
+package com.github.knokko.compressor;
+
+/**
+ * Receives the GPU timestamp measurements of a <i>Bc1Worker</i>, see
+ * <i>Bc1Worker.enableProfiling(listener, maxMeasurements)</i>
+ */
+@FunctionalInterface
+public interface Bc1ProfilingListener {
+
+	/**
+	 * This method is called once for each <i>compress</i> or <i>compressBatch</i> call of <i>worker</i>, during
+	 * <i>worker.collectProfilingResults()</i>.
+	 * @param worker The worker on which <i>compress</i> was called
+	 * @param numPixels The number of compressed pixels
+	 * @param milliseconds The GPU time between the first and last command of the <i>compress</i> call
+	 * @param pixelsPerMillisecond The throughput: {@code numPixels / milliseconds}
+	 */
+	void onMeasurement(Bc1Worker worker, long numPixels, double milliseconds, double pixelsPerMillisecond);
+}
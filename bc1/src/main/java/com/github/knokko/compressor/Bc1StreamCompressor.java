@@ -0,0 +1,249 @@
+package com.github.knokko.compressor;
+
+import com.github.knokko.boiler.buffers.MappedVkbBuffer;
+import com.github.knokko.boiler.commands.CommandRecorder;
+import com.github.knokko.boiler.queues.VkbQueue;
+import com.github.knokko.boiler.synchronization.VkbFence;
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import static com.github.knokko.boiler.exceptions.VulkanFailureException.assertVkSuccess;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.system.MemoryUtil.memByteBuffer;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Compresses a stream of images from host memory to BC1 bytes in host memory, while overlapping the upload,
+ * compression, and readback of consecutive images. It cycles through a fixed number of <i>frames</i>, each with their
+ * own staging buffers, command buffer, descriptor set, and fence. While the GPU compresses the image of one frame,
+ * the next image is copied to the staging buffer of the next frame, and the result of the oldest frame is read back.
+ * <p>
+ * The total size of the staging buffers is bounded by the <i>stagingBudget</i>. Images that don't fit in the staging
+ * buffers of 1 frame are split into strips of block rows, which are compressed separately and stitched together,
+ * since the BC1 data of consecutive block rows is stored right after each other.
+ * </p>
+ * <p>
+ * This class is <b>not</b> thread-safe: all methods must be called from the same thread (or with external
+ * synchronization). The returned futures are completed on that thread, during subsequent calls to
+ * {@link #compress(ByteBuffer, int, int)} or {@link #flush()}. Use <i>Bc1CompressionService</i> instead if you need to
+ * compress images from multiple threads.
+ * </p>
+ */
+public class Bc1StreamCompressor {
+
+	private final Bc1Compressor compressor;
+	private final Bc1Worker worker;
+	private final VkbQueue queue;
+	private final Frame[] frames;
+	private final long maxPixelsPerFrame;
+
+	private int nextFrame;
+	private int numFramesInFlight;
+
+	private long numCompressedPixels;
+	private long activeNanos;
+	private long activeStartTime;
+
+	/**
+	 * Creates a new stream compressor. The staging buffers will be created lazily, when they are needed.
+	 * @param compressor The compressor whose pipeline and descriptor bank should be used
+	 * @param numFrames The number of frames, which is the maximum number of images (or strips) in flight. It should
+	 *                  typically be 2 or 3.
+	 * @param stagingBudget The maximum total size of all staging buffers, in bytes. Each frame needs 4.5 bytes per
+	 *                      pixel (4 for the RGBA source, and 0.5 for the BC1 result), and each frame must be able to
+	 *                      hold at least 1 block row of the widest image that will be compressed.
+	 */
+	public Bc1StreamCompressor(Bc1Compressor compressor, int numFrames, long stagingBudget) {
+		if (numFrames <= 0) throw new IllegalArgumentException("numFrames must be positive, but is " + numFrames);
+		this.compressor = compressor;
+		this.worker = new Bc1Worker(compressor);
+		this.queue = compressor.boiler.queueFamilies().compute().first();
+		this.maxPixelsPerFrame = 2 * (stagingBudget / numFrames) / 9;
+		if (maxPixelsPerFrame < 16) {
+			throw new IllegalArgumentException("Staging budget " + stagingBudget + " is too small for " + numFrames + " frames");
+		}
+
+		this.frames = new Frame[numFrames];
+		for (int index = 0; index < numFrames; index++) frames[index] = new Frame(index);
+	}
+
+	/**
+	 * Starts compressing the given RGBA8 image. The image data will be copied to the staging buffers during this call
+	 * (or during subsequent calls, when the image needs to be split into multiple strips), so you may reuse
+	 * <i>rgba</i> after the returned future has completed.
+	 * <p>
+	 * This method may wait until the oldest frame has completed, and complete its future.
+	 * </p>
+	 * @param rgba The pixels of the image, in row-major order, with 1 byte per component. The image data starts at
+	 *             the position of the buffer, and this method will increase its position by {@code 4 * width * height}
+	 * @param width The width of the image, in pixels, must be a multiple of 4
+	 * @param height The height of the image, in pixels, must be a multiple of 4
+	 * @return A future that will be completed with the compressed data ({@code width * height / 2} bytes), in the
+	 * same layout as <i>Bc1Worker.compress</i> produces
+	 * @throws IllegalArgumentException When the size is invalid, when <i>rgba</i> is too small, or when a single block
+	 * row of the image doesn't fit in the staging budget of 1 frame
+	 */
+	public CompletableFuture<byte[]> compress(ByteBuffer rgba, int width, int height) throws IllegalArgumentException {
+		if (width <= 0 || height <= 0 || width % 4 != 0 || height % 4 != 0) {
+			throw new IllegalArgumentException("Width (" + width + ") and height (" + height + ") must be a multiple of 4");
+		}
+		if (rgba.remaining() < 4L * width * height) {
+			throw new IllegalArgumentException("Expected at least " + (4L * width * height) + " bytes, but got " + rgba.remaining());
+		}
+		long rowsPerStrip = 4 * (maxPixelsPerFrame / (4L * width));
+		if (rowsPerStrip == 0) {
+			throw new IllegalArgumentException("A block row of width " + width + " doesn't fit in the staging budget");
+		}
+
+		var job = new Job(new byte[width * height / 2], new CompletableFuture<>());
+		ByteBuffer source = rgba.slice();
+		for (int minY = 0; minY < height; minY += (int) rowsPerStrip) {
+			int stripHeight = (int) Math.min(rowsPerStrip, height - minY);
+			var frame = acquireFrame();
+			frame.submit(
+					job, source.slice(4 * width * minY, 4 * width * stripHeight),
+					width * minY / 2, width, stripHeight, minY + stripHeight == height
+			);
+		}
+		rgba.position(rgba.position() + 4 * width * height);
+		return job.future;
+	}
+
+	private Frame acquireFrame() {
+		var frame = frames[nextFrame];
+		if (frame.inFlight) frame.complete();
+		nextFrame = (nextFrame + 1) % frames.length;
+		return frame;
+	}
+
+	/**
+	 * Waits until all submitted images have been compressed, and completes their futures
+	 */
+	public void flush() {
+		for (int counter = 0; counter < frames.length; counter++) {
+			var frame = frames[(nextFrame + counter) % frames.length];
+			if (frame.inFlight) frame.complete();
+		}
+	}
+
+	/**
+	 * @return The total number of pixels that have been compressed <b>and</b> read back
+	 */
+	public long getNumCompressedPixels() {
+		return numCompressedPixels;
+	}
+
+	/**
+	 * @return The average throughput, in compressed pixels per millisecond, measured over the time during which at
+	 * least 1 frame was in flight. Returns 0 when nothing has been compressed yet.
+	 */
+	public double getPixelsPerMillisecond() {
+		long nanos = activeNanos;
+		if (numFramesInFlight > 0) nanos += System.nanoTime() - activeStartTime;
+		if (nanos == 0) return 0.0;
+		return numCompressedPixels * 1_000_000.0 / nanos;
+	}
+
+	/**
+	 * Waits until all submitted images have been compressed, and destroys all Vulkan objects of this stream
+	 * compressor. You must call this before destroying the <i>Bc1Compressor</i>.
+	 */
+	public void destroy() {
+		flush();
+		for (Frame frame : frames) frame.destroy();
+		worker.destroy();
+	}
+
+	private record Job(byte[] result, CompletableFuture<byte[]> future) {}
+
+	private class Frame {
+
+		final long descriptorSet;
+		final long commandPool;
+		final VkCommandBuffer commandBuffer;
+		final VkbFence fence;
+
+		MappedVkbBuffer sourceBuffer, destinationBuffer;
+		boolean inFlight;
+
+		Job job;
+		int resultOffset, numPixels;
+		boolean isLastStrip;
+
+		Frame(int index) {
+			var boiler = compressor.boiler;
+			this.descriptorSet = compressor.descriptorBank.borrowDescriptorSet("Bc1Stream" + index);
+			this.commandPool = boiler.commands.createPool(
+					VK_COMMAND_POOL_CREATE_TRANSIENT_BIT, boiler.queueFamilies().compute().index(), "Bc1StreamPool" + index
+			);
+			this.commandBuffer = boiler.commands.createPrimaryBuffers(commandPool, 1, "Bc1Stream" + index)[0];
+			this.fence = boiler.sync.fenceBank.borrowFence(false, "Bc1StreamFence" + index);
+		}
+
+		void submit(Job job, ByteBuffer rgba, int resultOffset, int width, int height, boolean isLastStrip) {
+			var boiler = compressor.boiler;
+			long sourceSize = 4L * width * height;
+			long destinationSize = (long) width * height / 2;
+			if (sourceBuffer == null || sourceBuffer.size() < sourceSize) {
+				if (sourceBuffer != null) sourceBuffer.destroy(boiler);
+				sourceBuffer = boiler.buffers.createMapped(sourceSize, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT, "Bc1StreamSource");
+			}
+			if (destinationBuffer == null || destinationBuffer.size() < destinationSize) {
+				if (destinationBuffer != null) destinationBuffer.destroy(boiler);
+				destinationBuffer = boiler.buffers.createMapped(
+						destinationSize, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT, "Bc1StreamDestination"
+				);
+			}
+
+			memByteBuffer(sourceBuffer.hostAddress(), (int) sourceSize).put(rgba);
+
+			try (var stack = stackPush()) {
+				assertVkSuccess(vkResetCommandPool(
+						boiler.vkDevice(), commandPool, 0
+				), "ResetCommandPool", "Bc1StreamCompressor");
+				var recorder = CommandRecorder.begin(commandBuffer, boiler, stack, "Bc1StreamCompressor");
+				worker.compress(
+						recorder, descriptorSet, sourceBuffer.range(0, sourceSize),
+						destinationBuffer.range(0, destinationSize), width, height
+				);
+				recorder.end();
+
+				synchronized (queue) {
+					queue.submit(commandBuffer, "Bc1StreamCompressor", null, fence);
+				}
+			}
+
+			this.job = job;
+			this.resultOffset = resultOffset;
+			this.numPixels = width * height;
+			this.isLastStrip = isLastStrip;
+			this.inFlight = true;
+			if (numFramesInFlight == 0) activeStartTime = System.nanoTime();
+			numFramesInFlight += 1;
+		}
+
+		void complete() {
+			fence.waitAndReset(Long.MAX_VALUE);
+			memByteBuffer(destinationBuffer.hostAddress(), numPixels / 2).get(job.result, resultOffset, numPixels / 2);
+
+			inFlight = false;
+			numCompressedPixels += numPixels;
+			numFramesInFlight -= 1;
+			if (numFramesInFlight == 0) activeNanos += System.nanoTime() - activeStartTime;
+
+			if (isLastStrip) job.future.complete(job.result);
+			job = null;
+		}
+
+		void destroy() {
+			var boiler = compressor.boiler;
+			vkDestroyCommandPool(boiler.vkDevice(), commandPool, null);
+			boiler.sync.fenceBank.returnFence(fence);
+			compressor.descriptorBank.returnDescriptorSet(descriptorSet);
+			if (sourceBuffer != null) sourceBuffer.destroy(boiler);
+			if (destinationBuffer != null) destinationBuffer.destroy(boiler);
+		}
+	}
+}
@@ -5,8 +5,14 @@ import com.github.knokko.boiler.buffers.VkbBufferRange;
 import com.github.knokko.boiler.commands.CommandRecorder;
 import com.github.knokko.boiler.images.VkbImage;
 import com.github.knokko.boiler.synchronization.ResourceUsage;
+import org.lwjgl.vulkan.VkBufferCopy;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkQueryPoolCreateInfo;
+import org.lwjgl.vulkan.VkQueueFamilyProperties;
 import org.lwjgl.vulkan.VkWriteDescriptorSet;
 
+import static com.github.knokko.boiler.exceptions.VulkanFailureException.assertVkSuccess;
+import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.vulkan.VK10.*;
 
 /**
@@ -18,6 +24,13 @@ public class Bc1Worker {
 	private final Bc1Compressor compressor;
 	private VkbBuffer transferBuffer;
 
+	private Bc1ProfilingListener profilingListener;
+	private long queryPool;
+	private long[] measuredPixels;
+	private int numMeasurements;
+	private double timestampPeriod;
+	private long timestampMask;
+
 	/**
 	 * Constructs a new worker for <i>compressor</i>
 	 */
@@ -36,7 +49,22 @@ public class Bc1Worker {
 	 * @param destination The destination image with BC1 format, must be in <i>VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL</i>
 	 */
 	public void compress(CommandRecorder recorder, long descriptorSet, VkbBufferRange source, VkbImage destination) {
-		long transferBufferSize = (long) destination.width() * destination.height() / 2;
+		long numPixels = (long) destination.width() * destination.height();
+		validateDispatch(source, numPixels / 2, destination.width(), destination.height());
+		int measurement = beginMeasurement(recorder, numPixels);
+		prepareTransferBuffer(recorder, numPixels / 2);
+		recordDispatch(
+				recorder, descriptorSet, source, transferBuffer.fullRange(), destination.width(), destination.height()
+		);
+		recorder.bufferBarrier(
+				transferBuffer.fullRange(), ResourceUsage.computeBuffer(VK_ACCESS_SHADER_WRITE_BIT),
+				ResourceUsage.TRANSFER_SOURCE
+		);
+		recorder.copyBufferToImage(destination, transferBuffer.fullRange());
+		endMeasurement(recorder, measurement);
+	}
+
+	private void prepareTransferBuffer(CommandRecorder recorder, long transferBufferSize) {
 		if (transferBuffer == null || transferBuffer.size() < transferBufferSize) {
 			if (transferBuffer != null) transferBuffer.destroy(compressor.boiler);
 			transferBuffer = compressor.boiler.buffers.create(
@@ -50,13 +78,55 @@ public class Bc1Worker {
 					ResourceUsage.computeBuffer(VK_ACCESS_SHADER_WRITE_BIT)
 			);
 		}
+	}
 
-		compress(recorder, descriptorSet, source, transferBuffer.fullRange(), destination.width(), destination.height());
+	/**
+	 * Records commands to compress all images of <i>batch</i> using a single dispatch. The images must be stored in
+	 * the atlas in the <i>source</i> range (see {@link Bc1Batch#putSource}), and the compressed images will be
+	 * copied to the <i>destination</i> range, at {@link Bc1Batch#getDestinationOffset(int)}. Compared to calling
+	 * <i>compress</i> once for each image, this avoids a descriptor update, pipeline bind, push constant, and
+	 * dispatch per image, which matters when you compress many small images.
+	 * @param recorder The command recorder onto which the compute commands and transfer commands will be recorded
+	 * @param descriptorSet The descriptor set. It must have the <i>descriptorSetLayout</i> of the <i>Bc1Compressor</i>.
+	 *                      This method will call <i>vkUpdateDescriptorSets</i>, so you can't reuse it until the
+	 *                      recorded commands have completed execution.
+	 * @param batch The batch of images to be compressed
+	 * @param source The source buffer range containing the RGBA8 atlas of the batch. Its offset must be a multiple of
+	 *               {@link org.lwjgl.vulkan.VkPhysicalDeviceLimits#minStorageBufferOffsetAlignment}
+	 * @param destination The destination buffer range to which the compressed images will be copied. Its buffer must
+	 *                    have <i>VK_BUFFER_USAGE_TRANSFER_DST_BIT</i>, and its size must be at least
+	 *                    {@link Bc1Batch#getDestinationSize()}
+	 */
+	public void compressBatch(
+			CommandRecorder recorder, long descriptorSet, Bc1Batch batch,
+			VkbBufferRange source, VkbBufferRange destination
+	) {
+		if (batch.getNumImages() == 0) return;
+		if (batch.getDestinationSize() > destination.size()) {
+			throw new IllegalArgumentException("Destination range is too small");
+		}
+		validateDispatch(source, batch.getCompressedAtlasSize(), batch.atlasWidth, batch.atlasHeight);
+
+		int measurement = beginMeasurement(recorder, batch.getDestinationSize() * 2);
+		prepareTransferBuffer(recorder, batch.getCompressedAtlasSize());
+		recordDispatch(recorder, descriptorSet, source, transferBuffer.fullRange(), batch.atlasWidth, batch.atlasHeight);
 		recorder.bufferBarrier(
 				transferBuffer.fullRange(), ResourceUsage.computeBuffer(VK_ACCESS_SHADER_WRITE_BIT),
 				ResourceUsage.TRANSFER_SOURCE
 		);
-		recorder.copyBufferToImage(destination, transferBuffer.fullRange());
+
+		long[] regions = batch.getCopyRegions();
+		var copyRegions = VkBufferCopy.calloc(regions.length / 3);
+		for (int index = 0; index < copyRegions.capacity(); index++) {
+			copyRegions.get(index).set(
+					regions[3 * index], destination.offset() + regions[3 * index + 1], regions[3 * index + 2]
+			);
+		}
+		vkCmdCopyBuffer(
+				recorder.commandBuffer, transferBuffer.vkBuffer(), destination.buffer().vkBuffer(), copyRegions
+		);
+		copyRegions.free();
+		endMeasurement(recorder, measurement);
 	}
 
 	/**
@@ -76,12 +146,29 @@ public class Bc1Worker {
 			CommandRecorder recorder, long descriptorSet, VkbBufferRange source,
 			VkbBufferRange destination, int width, int height
 	) {
+		validateDispatch(source, destination.size(), width, height);
+		int measurement = beginMeasurement(recorder, (long) width * height);
+		recordDispatch(recorder, descriptorSet, source, destination, width, height);
+		endMeasurement(recorder, measurement);
+	}
+
+	/**
+	 * Checks the arguments of a dispatch. This must happen before <i>beginMeasurement</i>: when a check fails after
+	 * the first timestamp has been written, the second timestamp would never be written, and
+	 * <i>collectProfilingResults</i> would wait forever.
+	 */
+	private static void validateDispatch(VkbBufferRange source, long destinationSize, int width, int height) {
 		if (width % 4 != 0 || height % 4 != 0) {
 			throw new IllegalArgumentException("Width (" + width + ") and height (" + height + ") must be a multiple of 4");
 		}
 		if (4L * width * height > source.size()) throw new IllegalArgumentException("Source range is too small");
-		if ((long) width * height / 2 > destination.size()) throw new IllegalArgumentException("Destination range is too small");
+		if ((long) width * height / 2 > destinationSize) throw new IllegalArgumentException("Destination range is too small");
+	}
 
+	private void recordDispatch(
+			CommandRecorder recorder, long descriptorSet, VkbBufferRange source,
+			VkbBufferRange destination, int width, int height
+	) {
 		var writes = VkWriteDescriptorSet.calloc(3, recorder.stack);
 		compressor.boiler.descriptors.writeBuffer(
 				recorder.stack, writes, descriptorSet, 0,
@@ -107,10 +194,112 @@ public class Bc1Worker {
 		vkCmdDispatch(recorder.commandBuffer, width / 4, height / 4, 1);
 	}
 
+	/**
+	 * Enables GPU timestamp profiling. After calling this method, each <i>compress</i> and <i>compressBatch</i> call
+	 * will record a timestamp query before its first command and after its last command (so the measured time
+	 * includes the barriers, the dispatch, and the copy to the destination image or buffer). The results must be
+	 * collected using {@link #collectProfilingResults()}, which will propagate them to <i>listener</i>.
+	 * <p>
+	 * This assumes that the command buffers are submitted to a queue of the compute queue family of the
+	 * <i>BoilerInstance</i>.
+	 * </p>
+	 * @param listener The listener that will receive the measurements
+	 * @param maxMeasurements The maximum number of <i>compress</i> calls between 2 calls to
+	 *                        <i>collectProfilingResults</i>
+	 * @throws UnsupportedOperationException When the compute queue family doesn't support timestamps
+	 */
+	public void enableProfiling(Bc1ProfilingListener listener, int maxMeasurements) {
+		if (maxMeasurements <= 0) throw new IllegalArgumentException("maxMeasurements must be positive");
+		if (profilingListener != null) throw new IllegalStateException("Profiling is already enabled");
+
+		var boiler = compressor.boiler;
+		try (var stack = stackPush()) {
+			var pNumQueueFamilies = stack.callocInt(1);
+			vkGetPhysicalDeviceQueueFamilyProperties(boiler.vkPhysicalDevice(), pNumQueueFamilies, null);
+			var queueFamilies = VkQueueFamilyProperties.calloc(pNumQueueFamilies.get(0), stack);
+			vkGetPhysicalDeviceQueueFamilyProperties(boiler.vkPhysicalDevice(), pNumQueueFamilies, queueFamilies);
+			int validBits = queueFamilies.get(boiler.queueFamilies().compute().index()).timestampValidBits();
+			if (validBits == 0) {
+				throw new UnsupportedOperationException("The compute queue family doesn't support timestamps");
+			}
+
+			var properties = VkPhysicalDeviceProperties.calloc(stack);
+			vkGetPhysicalDeviceProperties(boiler.vkPhysicalDevice(), properties);
+
+			var ciQueryPool = VkQueryPoolCreateInfo.calloc(stack);
+			ciQueryPool.sType$Default();
+			ciQueryPool.queryType(VK_QUERY_TYPE_TIMESTAMP);
+			ciQueryPool.queryCount(2 * maxMeasurements);
+
+			var pQueryPool = stack.callocLong(1);
+			assertVkSuccess(vkCreateQueryPool(
+					boiler.vkDevice(), ciQueryPool, null, pQueryPool
+			), "CreateQueryPool", "Bc1WorkerProfiling");
+
+			this.queryPool = pQueryPool.get(0);
+			this.timestampPeriod = properties.limits().timestampPeriod();
+			this.timestampMask = validBits == 64 ? -1L : (1L << validBits) - 1L;
+		}
+
+		this.profilingListener = listener;
+		this.measuredPixels = new long[maxMeasurements];
+		this.numMeasurements = 0;
+	}
+
+	/**
+	 * Reads the timestamps of all <i>compress</i> calls since the previous call to this method, and propagates them
+	 * to the listener that was passed to {@link #enableProfiling(Bc1ProfilingListener, int)}. You must only call this
+	 * method after all command buffers onto which these <i>compress</i> calls were recorded, have completed execution
+	 * (for instance after waiting on their fences).
+	 */
+	public void collectProfilingResults() {
+		if (profilingListener == null) throw new IllegalStateException("Profiling is not enabled");
+		if (numMeasurements == 0) return;
+
+		try (var stack = stackPush()) {
+			var timestamps = stack.callocLong(2 * numMeasurements);
+			assertVkSuccess(vkGetQueryPoolResults(
+					compressor.boiler.vkDevice(), queryPool, 0, 2 * numMeasurements, timestamps,
+					8, VK_QUERY_RESULT_64_BIT | VK_QUERY_RESULT_WAIT_BIT
+			), "GetQueryPoolResults", "Bc1WorkerProfiling");
+
+			int measuredCount = numMeasurements;
+			numMeasurements = 0;
+			for (int index = 0; index < measuredCount; index++) {
+				long ticks = (timestamps.get(2 * index + 1) - timestamps.get(2 * index)) & timestampMask;
+				double milliseconds = ticks * timestampPeriod / 1_000_000.0;
+				long numPixels = measuredPixels[index];
+				profilingListener.onMeasurement(this, numPixels, milliseconds, numPixels / milliseconds);
+			}
+		}
+	}
+
+	private int beginMeasurement(CommandRecorder recorder, long numPixels) {
+		if (profilingListener == null) return -1;
+		if (numMeasurements == measuredPixels.length) {
+			throw new IllegalStateException("Too many measurements: call collectProfilingResults() first");
+		}
+
+		int measurement = numMeasurements;
+		numMeasurements += 1;
+		measuredPixels[measurement] = numPixels;
+		vkCmdResetQueryPool(recorder.commandBuffer, queryPool, 2 * measurement, 2);
+		vkCmdWriteTimestamp(recorder.commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, queryPool, 2 * measurement);
+		return measurement;
+	}
+
+	private void endMeasurement(CommandRecorder recorder, int measurement) {
+		if (measurement == -1) return;
+		vkCmdWriteTimestamp(
+				recorder.commandBuffer, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, queryPool, 2 * measurement + 1
+		);
+	}
+
 	/**
 	 * Destroys this worker. You should do this before destroying the <i>Bc1Compressor</i>.
 	 */
 	public void destroy() {
 		if (transferBuffer != null) transferBuffer.destroy(compressor.boiler);
+		if (profilingListener != null) vkDestroyQueryPool(compressor.boiler.vkDevice(), queryPool, null);
 	}
 }
@@ -11,10 +11,19 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import static com.github.knokko.boiler.exceptions.VulkanFailureException.assertVkSuccess;
 import static com.github.knokko.boiler.utilities.BoilerMath.nextMultipleOf;
+import static com.github.knokko.boiler.utilities.ColorPacker.rgba;
 import static com.github.knokko.compressor.TestHelper.assertImageEquals;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.lwjgl.system.MemoryStack.stackPush;
@@ -209,6 +218,484 @@ public class TestBc1Compression {
 		checkResults(destinationFolder);
 	}
 
+	private ByteBuffer encodeRGBA(BufferedImage image) {
+		var buffer = ByteBuffer.allocate(4 * image.getWidth() * image.getHeight());
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				var color = new Color(image.getRGB(x, y), true);
+				buffer.put((byte) color.getRed()).put((byte) color.getGreen());
+				buffer.put((byte) color.getBlue()).put((byte) color.getAlpha());
+			}
+		}
+		return buffer.flip();
+	}
+
+	@Test
+	public void testCpuCompression() throws IOException {
+		File[] files = new File("../test-helper/src/main/resources/com/github/knokko/compressor/mardek").listFiles();
+		assertNotNull(files);
+
+		File destinationFolder = Files.createTempDirectory("").toFile();
+		destinationFolder.deleteOnExit();
+		assertTrue(destinationFolder.isDirectory() || destinationFolder.mkdirs());
+
+		var pool = new ForkJoinPool(3);
+		for (File file : files) {
+			var image = ImageIO.read(file);
+			var source = encodeRGBA(image);
+			var destination = ByteBuffer.allocate(image.getWidth() * image.getHeight() / 2);
+			Bc1CpuCompressor.compress(
+					pool, source, image.getWidth(), image.getHeight(),
+					destination, Bc1CpuCompressor.DEFAULT_NUM_REFINEMENTS
+			);
+			assertFalse(source.hasRemaining());
+			assertFalse(destination.hasRemaining());
+
+			var serialDestination = ByteBuffer.allocate(destination.capacity());
+			Bc1CpuCompressor.compress(
+					source.flip(), image.getWidth(), image.getHeight(),
+					serialDestination, Bc1CpuCompressor.DEFAULT_NUM_REFINEMENTS
+			);
+			assertArrayEquals(destination.array(), serialDestination.array());
+
+			File destinationFile = new File(destinationFolder + "/" + file.getName());
+			ImageIO.write(crappyDecodeBc1(destination.array(), image.getWidth(), image.getHeight()), "PNG", destinationFile);
+			destinationFile.deleteOnExit();
+		}
+		pool.shutdown();
+
+		checkResults(destinationFolder);
+
+		assertThrows(IllegalArgumentException.class, () -> Bc1CpuCompressor.compress(
+				ByteBuffer.allocate(4 * 6 * 4), 6, 4, ByteBuffer.allocate(12), 2
+		));
+		assertThrows(IllegalArgumentException.class, () -> Bc1CpuCompressor.compress(
+				ByteBuffer.allocate(4 * 4 * 4), 4, 4, ByteBuffer.allocate(7), 2
+		));
+	}
+
+	@Test
+	public void testCpuDecompressionModes() {
+		var compressed = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+
+		// 4-color mode: pure red (0xF800) > pure blue (0x001F)
+		compressed.putShort((short) 0xF800).putShort((short) 0x001F).putInt(0b11_10_01_00);
+		// 3-color + transparent mode: pure blue (0x001F) <= white (0xFFFF)
+		compressed.putShort((short) 0x001F).putShort((short) 0xFFFF).putInt(0b11_10_01_00);
+		compressed.flip();
+
+		var output = IntBuffer.allocate(32);
+		Bc1Decompressor.decompress(compressed, 8, 4, output);
+		assertFalse(compressed.hasRemaining());
+		assertFalse(output.hasRemaining());
+
+		assertEquals(rgba(255, 0, 0, 255), output.get(0));
+		assertEquals(rgba(0, 0, 255, 255), output.get(1));
+		assertEquals(rgba(170, 0, 85, 255), output.get(2));
+		assertEquals(rgba(85, 0, 170, 255), output.get(3));
+		assertEquals(rgba(255, 0, 0, 255), output.get(8));
+
+		assertEquals(rgba(0, 0, 255, 255), output.get(4));
+		assertEquals(rgba(255, 255, 255, 255), output.get(5));
+		assertEquals(rgba(128, 128, 255, 255), output.get(6));
+		assertEquals(0, output.get(7));
+		assertEquals(rgba(0, 0, 255, 255), output.get(12));
+
+		var image = Bc1Decompressor.decompress(compressed.flip(), 8, 4);
+		assertEquals(new Color(170, 0, 85, 255), new Color(image.getRGB(2, 0), true));
+		assertEquals(new Color(0, 0, 0, 0), new Color(image.getRGB(7, 0), true));
+
+		assertThrows(IllegalArgumentException.class, () -> Bc1Decompressor.decompress(compressed.flip(), 6, 4));
+		assertThrows(IllegalArgumentException.class, () -> Bc1Decompressor.decompress(
+				compressed, 8, 4, ByteBuffer.allocate(127)
+		));
+	}
+
+	@Test
+	public void testCpuDecompression() throws IOException {
+		File[] files = new File("../test-helper/src/main/resources/com/github/knokko/compressor/mardek").listFiles();
+		assertNotNull(files);
+
+		// Note that the expected mardek output was decoded by crappyDecodeBc1, which doesn't follow the BC1
+		// specification, so the recovered images are compared with the source images instead
+		long totalError = 0;
+		long numOpaquePixels = 0;
+		for (File file : files) {
+			var image = ImageIO.read(file);
+			var compressed = ByteBuffer.allocate(image.getWidth() * image.getHeight() / 2);
+			Bc1CpuCompressor.compress(
+					encodeRGBA(image), image.getWidth(), image.getHeight(),
+					compressed, Bc1CpuCompressor.DEFAULT_NUM_REFINEMENTS
+			);
+
+			var recovered = Bc1Decompressor.decompress(compressed.flip(), image.getWidth(), image.getHeight());
+			for (int y = 0; y < image.getHeight(); y++) {
+				for (int x = 0; x < image.getWidth(); x++) {
+					var expectedColor = new Color(image.getRGB(x, y), true);
+					var actualColor = new Color(recovered.getRGB(x, y), true);
+
+					// The compressor uses an alpha threshold of 130
+					boolean opaque = expectedColor.getAlpha() > 130;
+					assertEquals(opaque ? 255 : 0, actualColor.getAlpha());
+					if (!opaque) continue;
+
+					totalError += Math.abs(expectedColor.getRed() - actualColor.getRed());
+					totalError += Math.abs(expectedColor.getGreen() - actualColor.getGreen());
+					totalError += Math.abs(expectedColor.getBlue() - actualColor.getBlue());
+					numOpaquePixels += 1;
+				}
+			}
+		}
+
+		// The average error is ~9.5 per component, whereas decoding with crappyDecodeBc1 gives ~40
+		double averageError = (double) totalError / (3 * numOpaquePixels);
+		assertTrue(averageError < 12.0, "Average error is " + averageError);
+
+		// A larger image to test the parallel decoding
+		int width = 1024;
+		int height = 512;
+		var rng = new Random(123);
+		var compressed = ByteBuffer.allocate(width * height / 2);
+		rng.nextBytes(compressed.array());
+
+		var pool = new ForkJoinPool(4);
+		var serialOutput = IntBuffer.allocate(width * height);
+		Bc1Decompressor.decompress(compressed, width, height, serialOutput);
+		var parallelOutput = IntBuffer.allocate(width * height);
+		Bc1Decompressor.decompress(pool, compressed.flip(), width, height, parallelOutput);
+		assertArrayEquals(serialOutput.array(), parallelOutput.array());
+
+		var rgba8 = ByteBuffer.allocate(4 * width * height);
+		Bc1Decompressor.decompress(pool, compressed.flip(), width, height, rgba8);
+		var image = Bc1Decompressor.decompress(pool, compressed.flip(), width, height);
+		pool.shutdown();
+
+		for (int index = 0; index < width * height; index++) {
+			int pixel = serialOutput.get(index);
+			assertEquals(pixel, rgba(
+					rgba8.get(4 * index), rgba8.get(4 * index + 1), rgba8.get(4 * index + 2), rgba8.get(4 * index + 3)
+			));
+			var color = new Color(image.getRGB(index % width, index / width), true);
+			assertEquals(pixel, rgba(color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha()));
+		}
+	}
+
+	@Test
+	public void testBatchLayout() throws IOException {
+		File[] files = new File("../test-helper/src/main/resources/com/github/knokko/compressor/mardek").listFiles();
+		assertNotNull(files);
+
+		// Add some differently-sized images to make the layout more interesting
+		int numImages = files.length + 3;
+		BufferedImage[] images = new BufferedImage[numImages];
+		for (int index = 0; index < files.length; index++) images[index] = ImageIO.read(files[index]);
+		var rng = new Random(1234);
+		for (int index = files.length; index < numImages; index++) {
+			images[index] = new BufferedImage(4 * (1 + rng.nextInt(30)), 4 * (1 + rng.nextInt(20)), BufferedImage.TYPE_INT_ARGB);
+			for (int x = 0; x < images[index].getWidth(); x++) {
+				for (int y = 0; y < images[index].getHeight(); y++) images[index].setRGB(x, y, rng.nextInt());
+			}
+		}
+
+		int[] widths = new int[numImages];
+		int[] heights = new int[numImages];
+		for (int index = 0; index < numImages; index++) {
+			widths[index] = images[index].getWidth();
+			heights[index] = images[index].getHeight();
+		}
+
+		var batch = new Bc1Batch(widths, heights);
+		assertEquals(numImages, batch.getNumImages());
+		var atlas = ByteBuffer.allocate((int) batch.getSourceSize());
+		for (int index = 0; index < numImages; index++) batch.putSource(atlas, index, encodeRGBA(images[index]));
+
+		// Emulate the dispatch and the copy of Bc1Worker.compressBatch
+		var compressedAtlas = ByteBuffer.allocate(batch.atlasWidth * batch.atlasHeight / 2);
+		Bc1CpuCompressor.compress(
+				atlas, batch.atlasWidth, batch.atlasHeight, compressedAtlas, Bc1CpuCompressor.DEFAULT_NUM_REFINEMENTS
+		);
+		byte[] destination = new byte[(int) batch.getDestinationSize()];
+		long[] regions = batch.getCopyRegions();
+		for (int index = 0; index < regions.length; index += 3) {
+			System.arraycopy(
+					compressedAtlas.array(), (int) regions[index], destination,
+					(int) regions[index + 1], (int) regions[index + 2]
+			);
+		}
+
+		// Since BC1 compresses each block independently, the results must be identical to compressing each image
+		for (int index = 0; index < numImages; index++) {
+			var expected = ByteBuffer.allocate(widths[index] * heights[index] / 2);
+			Bc1CpuCompressor.compress(
+					encodeRGBA(images[index]), widths[index], heights[index],
+					expected, Bc1CpuCompressor.DEFAULT_NUM_REFINEMENTS
+			);
+			int offset = (int) batch.getDestinationOffset(index);
+			assertArrayEquals(expected.array(), Arrays.copyOfRange(destination, offset, offset + expected.capacity()));
+		}
+
+		assertThrows(IllegalArgumentException.class, () -> new Bc1Batch(new int[] { 4, 6 }, new int[] { 4, 4 }));
+		assertThrows(IllegalArgumentException.class, () -> new Bc1Batch(new int[] { 4 }, new int[] { 4, 4 }));
+	}
+
+	@Test
+	public void testBatch() throws IOException {
+		var boiler = new BoilerBuilder(
+				VK_API_VERSION_1_2, "Bc1Batch", 1
+		)
+				.validation()
+				.forbidValidationErrors()
+				.build();
+
+		File[] files = new File("../test-helper/src/main/resources/com/github/knokko/compressor/mardek").listFiles();
+		assertNotNull(files);
+		BufferedImage[] sourceImages = new BufferedImage[files.length];
+		int[] widths = new int[files.length];
+		int[] heights = new int[files.length];
+		for (int index = 0; index < files.length; index++) {
+			sourceImages[index] = ImageIO.read(files[index]);
+			widths[index] = sourceImages[index].getWidth();
+			heights[index] = sourceImages[index].getHeight();
+		}
+		var batch = new Bc1Batch(widths, heights);
+
+		File destinationFolder = Files.createTempDirectory("").toFile();
+		destinationFolder.deleteOnExit();
+		assertTrue(destinationFolder.isDirectory() || destinationFolder.mkdirs());
+
+		var fence = boiler.sync.fenceBank.borrowFence(false, "Bc1Fence");
+		var commandPool = boiler.commands.createPool(0, boiler.queueFamilies().compute().index(), "CmdPool");
+		var commandBuffer = boiler.commands.createPrimaryBuffers(commandPool, 1, "CmdBuffer")[0];
+
+		var compressor = new Bc1Compressor(boiler);
+		var worker = new Bc1Worker(compressor);
+
+		var sourceBuffer = boiler.buffers.createMapped(
+				batch.getSourceSize(), VK_BUFFER_USAGE_STORAGE_BUFFER_BIT, "Source"
+		);
+		var destinationBuffer = boiler.buffers.createMapped(
+				batch.getDestinationSize(), VK_BUFFER_USAGE_TRANSFER_DST_BIT, "Destination"
+		);
+		var descriptorSet = compressor.descriptorBank.borrowDescriptorSet("Batch");
+
+		var atlas = memByteBuffer(sourceBuffer.hostAddress(), (int) batch.getSourceSize());
+		for (int index = 0; index < files.length; index++) batch.putSource(atlas, index, encodeRGBA(sourceImages[index]));
+
+		try (var stack = stackPush()) {
+			var recorder = CommandRecorder.begin(commandBuffer, boiler, stack, "Bc1Batch");
+			worker.compressBatch(recorder, descriptorSet, batch, sourceBuffer.fullRange(), destinationBuffer.fullRange());
+			recorder.end();
+
+			boiler.queueFamilies().graphics().first().submit(commandBuffer, "Bc1Batch", null, fence);
+
+			// This ridiculously long timeout is needed on GitHub Actions for some reason
+			fence.waitAndReset(10_000_000_000L);
+		}
+
+		for (int index = 0; index < files.length; index++) {
+			File destinationFile = new File(destinationFolder + "/" + files[index].getName());
+			var image = sourceImages[index];
+			var outputBuffer = memByteBuffer(
+					destinationBuffer.hostAddress() + batch.getDestinationOffset(index),
+					image.getWidth() * image.getHeight() / 2
+			);
+			var outputArray = new byte[outputBuffer.capacity()];
+			outputBuffer.get(outputArray);
+			ImageIO.write(crappyDecodeBc1(outputArray, image.getWidth(), image.getHeight()), "PNG", destinationFile);
+			destinationFile.deleteOnExit();
+		}
+
+		vkDestroyCommandPool(boiler.vkDevice(), commandPool, null);
+		boiler.sync.fenceBank.returnFence(fence);
+		worker.destroy();
+		compressor.descriptorBank.returnDescriptorSet(descriptorSet);
+		compressor.destroy(true);
+		sourceBuffer.destroy(boiler);
+		destinationBuffer.destroy(boiler);
+		boiler.destroyInitialObjects();
+
+		checkResults(destinationFolder);
+	}
+
+	@Test
+	public void testCompressionService() throws IOException, InterruptedException {
+		var boiler = new BoilerBuilder(
+				VK_API_VERSION_1_2, "Bc1CompressionService", 1
+		)
+				.validation()
+				.forbidValidationErrors()
+				.build();
+
+		File[] files = new File("../test-helper/src/main/resources/com/github/knokko/compressor/mardek").listFiles();
+		assertNotNull(files);
+		BufferedImage[] sourceImages = new BufferedImage[files.length];
+		for (int index = 0; index < files.length; index++) {
+			sourceImages[index] = ImageIO.read(files[index]);
+		}
+
+		File destinationFolder = Files.createTempDirectory("").toFile();
+		destinationFolder.deleteOnExit();
+		assertTrue(destinationFolder.isDirectory() || destinationFolder.mkdirs());
+
+		var compressor = new Bc1Compressor(boiler);
+		var service = new Bc1CompressionService(compressor, 3);
+
+		// Submit the images from multiple threads
+		@SuppressWarnings("unchecked")
+		CompletableFuture<byte[]>[] futures = new CompletableFuture[files.length];
+		IntStream.range(0, files.length).parallel().forEach(index -> {
+			var image = sourceImages[index];
+			futures[index] = service.compress(encodeRGBA(image), image.getWidth(), image.getHeight());
+		});
+
+		for (int index = 0; index < files.length; index++) {
+			var image = sourceImages[index];
+			File destinationFile = new File(destinationFolder + "/" + files[index].getName());
+			byte[] compressed = futures[index].join();
+			assertEquals(image.getWidth() * image.getHeight() / 2, compressed.length);
+			ImageIO.write(crappyDecodeBc1(compressed, image.getWidth(), image.getHeight()), "PNG", destinationFile);
+			destinationFile.deleteOnExit();
+		}
+
+		assertThrows(IllegalArgumentException.class, () -> service.compress(ByteBuffer.allocate(100), 4, 6));
+
+		service.destroy();
+		compressor.destroy(true);
+		boiler.destroyInitialObjects();
+
+		checkResults(destinationFolder);
+	}
+
+	@Test
+	public void testStreamCompressor() throws IOException {
+		var boiler = new BoilerBuilder(
+				VK_API_VERSION_1_2, "Bc1StreamCompressor", 1
+		)
+				.validation()
+				.forbidValidationErrors()
+				.build();
+
+		File[] files = new File("../test-helper/src/main/resources/com/github/knokko/compressor/mardek").listFiles();
+		assertNotNull(files);
+
+		File destinationFolder = Files.createTempDirectory("").toFile();
+		destinationFolder.deleteOnExit();
+		assertTrue(destinationFolder.isDirectory() || destinationFolder.mkdirs());
+
+		var compressor = new Bc1Compressor(boiler);
+
+		// Use a tiny staging budget, so the 16x16 sprites are split into strips of 4 rows
+		var stream = new Bc1StreamCompressor(compressor, 3, 3 * 288);
+		assertThrows(IllegalArgumentException.class, () -> stream.compress(ByteBuffer.allocate(4 * 32 * 4), 32, 4));
+
+		BufferedImage[] sourceImages = new BufferedImage[files.length];
+		@SuppressWarnings("unchecked")
+		CompletableFuture<byte[]>[] futures = new CompletableFuture[files.length];
+		long numPixels = 0;
+		for (int index = 0; index < files.length; index++) {
+			sourceImages[index] = ImageIO.read(files[index]);
+			var image = sourceImages[index];
+			futures[index] = stream.compress(encodeRGBA(image), image.getWidth(), image.getHeight());
+			numPixels += (long) image.getWidth() * image.getHeight();
+		}
+		stream.flush();
+
+		assertEquals(numPixels, stream.getNumCompressedPixels());
+		assertTrue(stream.getPixelsPerMillisecond() > 0.0);
+		System.out.println("Bc1StreamCompressor throughput is " + stream.getPixelsPerMillisecond() + " pixels/ms");
+
+		for (int index = 0; index < files.length; index++) {
+			var image = sourceImages[index];
+			assertTrue(futures[index].isDone());
+			File destinationFile = new File(destinationFolder + "/" + files[index].getName());
+			ImageIO.write(crappyDecodeBc1(
+					futures[index].join(), image.getWidth(), image.getHeight()
+			), "PNG", destinationFile);
+			destinationFile.deleteOnExit();
+		}
+
+		stream.destroy();
+		compressor.destroy(true);
+		boiler.destroyInitialObjects();
+
+		checkResults(destinationFolder);
+	}
+
+	@Test
+	public void testProfiling() {
+		var boiler = new BoilerBuilder(
+				VK_API_VERSION_1_2, "Bc1Profiling", 1
+		)
+				.validation()
+				.forbidValidationErrors()
+				.build();
+
+		var compressor = new Bc1Compressor(boiler);
+		var worker = new Bc1Worker(compressor);
+
+		long[] measuredPixels = new long[4];
+		double[] measuredMillis = new double[4];
+		int[] numMeasurements = { 0 };
+		worker.enableProfiling((measuredWorker, numPixels, milliseconds, pixelsPerMillisecond) -> {
+			assertSame(worker, measuredWorker);
+			assertEquals(numPixels / milliseconds, pixelsPerMillisecond, 0.001);
+			measuredPixels[numMeasurements[0]] = numPixels;
+			measuredMillis[numMeasurements[0]] = milliseconds;
+			numMeasurements[0] += 1;
+		}, 3);
+
+		int width = 256;
+		int height = 128;
+		var sourceBuffer = boiler.buffers.createMapped(4L * width * height, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT, "Source");
+		var destinationBuffer = boiler.buffers.createMapped(
+				(long) width * height / 2, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT, "Destination"
+		);
+		var hostSource = memByteBuffer(sourceBuffer.hostAddress(), 4 * width * height);
+		var rng = new Random(1234);
+		while (hostSource.hasRemaining()) hostSource.put((byte) rng.nextInt());
+
+		var descriptorSet = compressor.descriptorBank.borrowDescriptorSet("Bc1Profiling");
+		var fence = boiler.sync.fenceBank.borrowFence(false, "Bc1ProfilingFence");
+		var commandPool = boiler.commands.createPool(0, boiler.queueFamilies().compute().index(), "Bc1Profiling");
+		var commandBuffer = boiler.commands.createPrimaryBuffers(commandPool, 1, "Bc1Profiling")[0];
+
+		for (int round = 0; round < 2; round++) {
+			try (var stack = stackPush()) {
+				var recorder = CommandRecorder.begin(commandBuffer, boiler, stack, "Bc1Profiling");
+				worker.compress(
+						recorder, descriptorSet, sourceBuffer.fullRange(),
+						destinationBuffer.fullRange(), width, height
+				);
+				recorder.end();
+				boiler.queueFamilies().compute().first().submit(commandBuffer, "Bc1Profiling", null, fence);
+				fence.waitAndReset(10_000_000_000L);
+			}
+			assertEquals(round, numMeasurements[0]);
+			worker.collectProfilingResults();
+			assertEquals(round + 1, numMeasurements[0]);
+			assertEquals((long) width * height, measuredPixels[round]);
+			assertTrue(measuredMillis[round] > 0.0);
+			System.out.println("Bc1 compression took " + measuredMillis[round] + " ms on the GPU");
+
+			assertVkSuccess(vkResetCommandPool(
+					boiler.vkDevice(), commandPool, 0
+			), "ResetCommandPool", "Bc1Profiling");
+		}
+
+		// Nothing to collect
+		worker.collectProfilingResults();
+		assertEquals(2, numMeasurements[0]);
+
+		vkDestroyCommandPool(boiler.vkDevice(), commandPool, null);
+		boiler.sync.fenceBank.returnFence(fence);
+		compressor.descriptorBank.returnDescriptorSet(descriptorSet);
+		sourceBuffer.destroy(boiler);
+		destinationBuffer.destroy(boiler);
+		worker.destroy();
+		compressor.destroy(true);
+		boiler.destroyInitialObjects();
+	}
+
 	@Test
 	public void testWithManySubmissionsAnd1Worker() throws IOException {
 		var boiler = new BoilerBuilder(
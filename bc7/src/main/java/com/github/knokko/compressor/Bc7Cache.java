@@ -0,0 +1,263 @@
+package com.github.knokko.compressor;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent on-disk cache for BC7 payloads, which can be put in front of <i>Bc7Compressor.compressBc7</i> or a
+ * <i>Bc7CompressionPool</i>. The entries are keyed by a hash of the pixels of the image, its size, and the flags
+ * that are passed to bc7enc, so unchanged images don't need to be compressed again in later (incremental) builds.
+ * <p>
+ * Each entry is stored in its own file, which is written atomically (to a temporary file that is moved to its final
+ * place), so concurrent or interrupted builds can't corrupt the cache. The total size of all entries is capped: when
+ * it is exceeded, the least recently used entries are removed. The last modified time of each file is used to
+ * remember when it was last used.
+ * </p>
+ * <p>
+ * This class is thread-safe, but 2 caches should not use the same directory at the same time.
+ * </p>
+ */
+public class Bc7Cache {
+
+	private static final String EXTENSION = ".bc7";
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	/**
+	 * Temporary files that are older than this (in milliseconds) were most likely left behind by a crashed or killed
+	 * build, so they are deleted when a cache is opened. Younger temporary files may still be written by another
+	 * process.
+	 */
+	private static final long STALE_TEMP_FILE_AGE = 60 * 60 * 1000L;
+
+	private final Path directory;
+	private final long maxSize;
+
+	/**
+	 * Maps the keys to the file sizes. Its iteration order is from least recently used to most recently used.
+	 */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalSize;
+
+	private final AtomicLong numHits = new AtomicLong();
+	private final AtomicLong numMisses = new AtomicLong();
+
+	/**
+	 * Opens the cache in <i>directory</i>, which will be created if it doesn't exist yet. Any existing entries in
+	 * <i>directory</i> will be reused, and temporary files that are older than 1 hour will be deleted.
+	 * @param maxSize The maximum total size of all entries, in bytes
+	 */
+	public Bc7Cache(Path directory, long maxSize) throws IOException {
+		if (maxSize < 0) throw new IllegalArgumentException("maxSize must not be negative, but is " + maxSize);
+		this.directory = directory;
+		this.maxSize = maxSize;
+		Files.createDirectories(directory);
+
+		record ExistingEntry(String key, long size, FileTime lastUsed) {}
+		List<ExistingEntry> existingEntries = new ArrayList<>();
+		long staleTime = System.currentTimeMillis() - STALE_TEMP_FILE_AGE;
+		try (var files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(TEMP_EXTENSION)) {
+					try {
+						if (Files.getLastModifiedTime(file).toMillis() < staleTime) Files.deleteIfExists(file);
+					} catch (NoSuchFileException movedByOtherProcess) {
+						// The other process finished writing it in the meantime
+					}
+				}
+				if (!name.endsWith(EXTENSION)) continue;
+				existingEntries.add(new ExistingEntry(
+						name.substring(0, name.length() - EXTENSION.length()),
+						Files.size(file), Files.getLastModifiedTime(file)
+				));
+			}
+		}
+
+		existingEntries.sort(Comparator.comparing(ExistingEntry::lastUsed));
+		synchronized (entries) {
+			for (var entry : existingEntries) {
+				entries.put(entry.key, entry.size);
+				totalSize += entry.size;
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Computes the cache key of <i>image</i>: the hex SHA-256 hash of the bc7enc flags, its size, and its pixels in
+	 * exactly the format that is given to bc7enc (see <i>UncompressedPngWriter</i>)
+	 */
+	static String key(BufferedImage image) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException shouldNotHappen) {
+			throw new Error(shouldNotHappen);
+		}
+
+		digest.update(String.join(" ", Bc7EncoderProcess.FLAGS).getBytes());
+		var format = UncompressedPngWriter.Format.of(image);
+		digest.update(format.name().getBytes());
+		int width = image.getWidth();
+		digest.update(ByteBuffer.allocate(8).putInt(width).putInt(image.getHeight()).flip());
+
+		int[] row = new int[width];
+		byte[] pixels = new byte[format.bytesPerPixel * width];
+		for (int y = 0; y < image.getHeight(); y++) {
+			UncompressedPngWriter.getPixels(image, format, y, row, pixels, 0);
+			digest.update(pixels);
+		}
+
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * Looks up the BC7 payload of <i>image</i>
+	 * @return The cached payload, or null if <i>image</i> is not in this cache
+	 */
+	public byte[] get(BufferedImage image) {
+		return get(key(image));
+	}
+
+	private byte[] get(String key) {
+		synchronized (entries) {
+			if (entries.get(key) == null) {
+				numMisses.incrementAndGet();
+				return null;
+			}
+		}
+
+		Path file = directory.resolve(key + EXTENSION);
+		try {
+			byte[] payload = Files.readAllBytes(file);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			numHits.incrementAndGet();
+			return payload;
+		} catch (IOException evictedOrDeleted) {
+			synchronized (entries) {
+				Long size = entries.remove(key);
+				if (size != null) totalSize -= size;
+			}
+			numMisses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the BC7 <i>payload</i> of <i>image</i> in this cache, and evicts the least recently used entries when
+	 * the total size exceeds the maximum size. Payloads larger than the maximum size are not stored at all.
+	 */
+	public void put(BufferedImage image, byte[] payload) throws IOException {
+		put(key(image), payload);
+	}
+
+	private void put(String key, byte[] payload) throws IOException {
+		if (payload.length > maxSize) return;
+
+		Path file = directory.resolve(key + EXTENSION);
+		Path tempFile = directory.resolve(key + "." + UUID.randomUUID() + TEMP_EXTENSION);
+		try {
+			Files.write(tempFile, payload);
+			Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+
+		synchronized (entries) {
+			Long oldSize = entries.put(key, (long) payload.length);
+			if (oldSize != null) totalSize -= oldSize;
+			totalSize += payload.length;
+		}
+		evict();
+	}
+
+	private void evict() throws IOException {
+		List<String> evictedKeys = new ArrayList<>();
+		synchronized (entries) {
+			var iterator = entries.entrySet().iterator();
+			while (totalSize > maxSize && iterator.hasNext()) {
+				var entry = iterator.next();
+				evictedKeys.add(entry.getKey());
+				totalSize -= entry.getValue();
+				iterator.remove();
+			}
+		}
+		for (String key : evictedKeys) Files.deleteIfExists(directory.resolve(key + EXTENSION));
+	}
+
+	/**
+	 * Returns the cached BC7 payload of <i>image</i>, or compresses it using <i>Bc7Compressor.compressBc7</i> and
+	 * stores the result in this cache.
+	 */
+	public byte[] compressBc7(BufferedImage image) throws IOException {
+		String key = key(image);
+		byte[] payload = get(key);
+		if (payload == null) {
+			payload = Bc7Compressor.compressBc7(image);
+			tryPut(key, payload);
+		}
+		return payload;
+	}
+
+	/**
+	 * Returns a completed future with the cached BC7 payload of <i>image</i>, or compresses it using <i>pool</i>
+	 * and stores the result in this cache once it has been compressed. Cancelling the returned future will cancel
+	 * the job of <i>pool</i> (and kill its encoder process).
+	 */
+	public CompletableFuture<byte[]> compress(Bc7CompressionPool pool, BufferedImage image) {
+		String key = key(image);
+		byte[] payload = get(key);
+		if (payload != null) return CompletableFuture.completedFuture(payload);
+		var poolFuture = pool.compress(image);
+		var result = poolFuture.thenApply(compressed -> {
+			tryPut(key, compressed);
+			return compressed;
+		});
+		result.whenComplete((compressed, failure) -> {
+			if (result.isCancelled()) poolFuture.cancel(true);
+		});
+		return result;
+	}
+
+	/**
+	 * Stores <i>payload</i> in this cache, but only prints a warning when that fails, since caching is best-effort
+	 */
+	private void tryPut(String key, byte[] payload) {
+		try {
+			put(key, payload);
+		} catch (IOException failed) {
+			System.out.println("Warning: failed to store Bc7 result in cache: " + failed.getMessage());
+		}
+	}
+
+	/**
+	 * @return The number of lookups that found a cached payload
+	 */
+	public long getNumHits() {
+		return numHits.get();
+	}
+
+	/**
+	 * @return The number of lookups that didn't find a cached payload
+	 */
+	public long getNumMisses() {
+		return numMisses.get();
+	}
+
+	/**
+	 * @return The total size of all entries in this cache, in bytes
+	 */
+	public long getTotalSize() {
+		synchronized (entries) {
+			return totalSize;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.github.knokko.compressor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compresses images to BC7 asynchronously, using at most <i>maxProcesses</i> concurrent bc7enc processes. Each
+ * image is compressed by its own process, which is started and awaited on a small pool of daemon threads (1 thread
+ * per concurrent process).
+ * <p>
+ * Each job has a timeout, which starts when its process is started (so the time spent waiting in the queue doesn't
+ * count). When a job times out, its process is killed, and its future is completed exceptionally with a
+ * <i>TimeoutException</i>. When you cancel a future, its process is killed as well (or never started).
+ * </p>
+ */
+public class Bc7CompressionPool implements AutoCloseable {
+
+	private final String executable;
+	private final File directory;
+	private final long timeoutMillis;
+	private final int maxProcesses;
+	private final ExecutorService executor;
+
+	/**
+	 * Creates a pool that uses the bc7enc binaries that are bundled with this library
+	 * @param maxProcesses The maximum number of bc7enc processes that can run at the same time
+	 * @param timeoutMillis The maximum time (in milliseconds) that each process may take, or 0 to wait forever
+	 */
+	public Bc7CompressionPool(int maxProcesses, long timeoutMillis) {
+		this(Bc7Compressor.encoderExecutable(), Bc7Compressor.WORK_DIRECTORY, maxProcesses, timeoutMillis);
+	}
+
+	/**
+	 * Creates a pool that runs <i>executable</i> in the work <i>directory</i>. This is used to test the pool with a
+	 * stand-in encoder.
+	 */
+	Bc7CompressionPool(String executable, File directory, int maxProcesses, long timeoutMillis) {
+		if (maxProcesses <= 0) throw new IllegalArgumentException("maxProcesses must be positive, but is " + maxProcesses);
+		if (timeoutMillis < 0) throw new IllegalArgumentException("timeoutMillis must not be negative");
+		this.executable = executable;
+		this.directory = directory;
+		this.timeoutMillis = timeoutMillis;
+		this.maxProcesses = maxProcesses;
+		this.executor = Executors.newFixedThreadPool(maxProcesses, task -> {
+			var thread = new Thread(task, "Bc7CompressionPool");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Schedules the compression of <i>image</i>.
+	 * @return A future that will be completed with the BC7 payload, which is the same as
+	 * <i>Bc7Compressor.compressBc7(image)</i> would return. Cancelling this future will kill the encoder process.
+	 */
+	public CompletableFuture<byte[]> compress(BufferedImage image) {
+		var future = new CompletableFuture<byte[]>();
+		var process = new AtomicReference<Process>();
+		future.whenComplete((result, failure) -> {
+			if (future.isCancelled()) {
+				var runningProcess = process.get();
+				if (runningProcess != null) Bc7EncoderProcess.kill(runningProcess);
+			}
+		});
+
+		executor.execute(() -> {
+			if (future.isDone()) return;
+			try {
+				var payload = Bc7EncoderProcess.run(image, executable, directory, timeoutMillis, startedProcess -> {
+					process.set(startedProcess);
+					if (future.isCancelled()) Bc7EncoderProcess.kill(startedProcess);
+				}, false);
+				future.complete(payload.array());
+			} catch (Throwable failure) {
+				future.completeExceptionally(failure);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Compresses <i>image</i> by splitting it into horizontal strips, such that each process of this pool can
+	 * compress 1 strip. See {@link #compressTiled(BufferedImage, int, int)}.
+	 */
+	public CompletableFuture<byte[]> compressTiled(BufferedImage image) {
+		int numBlockRows = (image.getHeight() + 3) / 4;
+		int tileHeight = 4 * Math.max(1, (numBlockRows + maxProcesses - 1) / maxProcesses);
+		return compressTiled(image, 4 * ((image.getWidth() + 3) / 4), tileHeight);
+	}
+
+	/**
+	 * Splits <i>image</i> into tiles of (at most) <i>tileWidth</i> x <i>tileHeight</i> pixels, compresses all
+	 * tiles concurrently, and stitches their payloads together. The result has exactly the same layout as
+	 * <i>Bc7Compressor.compressBc7(image)</i>, and since bc7enc compresses each 4x4 block independently, its
+	 * blocks should also be the same.
+	 * @param tileWidth The width of each tile, in pixels, must be a multiple of 4
+	 * @param tileHeight The height of each tile, in pixels, must be a multiple of 4
+	 * @return A future that will be completed with the BC7 payload of the whole image. When any tile fails, the
+	 * future will be completed exceptionally, and the other tiles will be cancelled. Cancelling this future will
+	 * cancel all tiles.
+	 */
+	public CompletableFuture<byte[]> compressTiled(BufferedImage image, int tileWidth, int tileHeight) {
+		var tiles = Bc7Tiling.split(image.getWidth(), image.getHeight(), tileWidth, tileHeight);
+
+		var result = new CompletableFuture<byte[]>();
+		List<CompletableFuture<byte[]>> tileFutures = new ArrayList<>(tiles.size());
+		for (var tile : tiles) {
+			var tileFuture = compress(image.getSubimage(tile.x(), tile.y(), tile.width(), tile.height()));
+			tileFuture.whenComplete((tileResult, failure) -> {
+				if (failure != null) result.completeExceptionally(failure);
+			});
+			tileFutures.add(tileFuture);
+		}
+
+		CompletableFuture.allOf(tileFutures.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+			try {
+				byte[] payload = new byte[Bc7Tiling.payloadSize(image.getWidth(), image.getHeight())];
+				for (int index = 0; index < tileFutures.size(); index++) {
+					Bc7Tiling.stitch(payload, image.getWidth(), tiles.get(index), tileFutures.get(index).join());
+				}
+				result.complete(payload);
+			} catch (Throwable failure) {
+				result.completeExceptionally(failure);
+			}
+		});
+		result.whenComplete((payload, failure) -> {
+			if (failure != null) {
+				for (var tileFuture : tileFutures) tileFuture.cancel(true);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Waits until all scheduled jobs have finished (or have been cancelled), and stops the threads of this pool. When
+	 * the current thread is interrupted while waiting, this method returns early, and the interrupt flag of the
+	 * current thread is restored.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			//noinspection ResultOfMethodCallIgnored
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
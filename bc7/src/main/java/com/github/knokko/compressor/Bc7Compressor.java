@@ -4,15 +4,20 @@ import org.lwjgl.system.Platform;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
-import java.util.*;
-import java.util.stream.Collectors;
+import java.nio.file.Path;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.ZipInputStream;
-import javax.imageio.ImageIO;
 
 public class Bc7Compressor {
 
-	private static final File COMPRESSION_DIRECTORY;
+	static final File COMPRESSION_DIRECTORY;
+
+	/**
+	 * The directory in which the input images and output DDS files are stored, preferably on tmpfs
+	 */
+	static final File WORK_DIRECTORY;
 
 	static {
 		try {
@@ -21,6 +26,8 @@ public class Bc7Compressor {
 			throw new Error("Failed to create temp directory", failed);
 		}
 		COMPRESSION_DIRECTORY.deleteOnExit();
+		WORK_DIRECTORY = createWorkDirectory();
+		WORK_DIRECTORY.deleteOnExit();
 
 		Platform os = Platform.get();
 		String fileName;
@@ -65,45 +72,60 @@ public class Bc7Compressor {
 		}
 	}
 
-	public static byte[] compressBc7(BufferedImage image) throws IOException {
-		String name = UUID.randomUUID().toString();
-		File source = new File(COMPRESSION_DIRECTORY + "/" + name + ".png");
-		source.deleteOnExit();
-
-		ImageIO.write(image, "PNG", source);
-		var compressionProcess = startCompressionProcess(name);
-		try {
-			if (compressionProcess.waitFor() != 0) {
-				try (var errorScanner = compressionProcess.errorReader()) {
-					throw new IOException("Bc7 compression failed: " + errorScanner.lines().collect(Collectors.joining()));
-				}
+	/**
+	 * Prefers a directory in /dev/shm (which is normally a tmpfs), so the images don't need to be written to disk.
+	 * The binaries are <b>not</b> stored there, since /dev/shm is often mounted with <i>noexec</i>.
+	 */
+	private static File createWorkDirectory() {
+		Path sharedMemory = Path.of("/dev/shm");
+		if (Files.isDirectory(sharedMemory) && Files.isWritable(sharedMemory)) {
+			try {
+				return Files.createTempDirectory(sharedMemory, "bc7").toFile();
+			} catch (IOException fallback) {
+				// Just use the normal temp directory
 			}
-		} catch (InterruptedException e) {
-			throw new IOException(e);
 		}
+		try {
+			return Files.createTempDirectory("").toFile();
+		} catch (IOException failed) {
+			throw new Error("Failed to create temp directory", failed);
+		}
+	}
 
-		File destination = new File(COMPRESSION_DIRECTORY + "/" + name + ".dds");
+	/**
+	 * Compresses <i>image</i> using bc7enc, and returns the BC7 payload
+	 */
+	public static byte[] compressBc7(BufferedImage image) throws IOException {
+		return compress(image, false).array();
+	}
 
-		try (var input = Files.newInputStream(destination.toPath())) {
-			input.skipNBytes(148);
-			return input.readAllBytes();
-		} finally {
-			if (!source.delete()) System.out.println("Warning: failed to delete " + source);
-			if (!destination.delete()) System.out.println("Warning: failed to delete " + destination);
+	/**
+	 * Like {@link #compressBc7(BufferedImage)}, but returns the BC7 payload in a direct <i>ByteBuffer</i>, which can
+	 * be copied to (mapped) GPU memory without an additional copy on the Java heap
+	 */
+	public static ByteBuffer compressBc7Direct(BufferedImage image) throws IOException {
+		return compress(image, true);
+	}
+
+	private static ByteBuffer compress(BufferedImage image, boolean direct) throws IOException {
+		try {
+			return Bc7EncoderProcess.run(image, encoderExecutable(), WORK_DIRECTORY, 0L, null, direct);
+		} catch (InterruptedException | TimeoutException e) {
+			throw new IOException(e);
 		}
 	}
 
-	private static Process startCompressionProcess(String name) throws IOException {
+	/**
+	 * @return The absolute path of the bc7enc binary for the current platform
+	 */
+	static String encoderExecutable() {
 		Platform os = Platform.get();
 
-		String baseCommand;
-		if (os == Platform.WINDOWS) baseCommand = COMPRESSION_DIRECTORY + "/bc7enc.exe";
-		else if (os == Platform.LINUX) baseCommand = "./bc7enc-linux";
-		else if (Platform.getArchitecture() == Platform.Architecture.ARM64) baseCommand = "./bc7enc-macos-arm64";
-		else baseCommand = "./bc7enc-macos-x64";
-
-		var processBuilder = new ProcessBuilder(baseCommand, "./" + name + ".png", "-g", "-q");
-		processBuilder.directory(COMPRESSION_DIRECTORY);
-		return processBuilder.start();
+		String fileName;
+		if (os == Platform.WINDOWS) fileName = "bc7enc.exe";
+		else if (os == Platform.LINUX) fileName = "bc7enc-linux";
+		else if (Platform.getArchitecture() == Platform.Architecture.ARM64) fileName = "bc7enc-macos-arm64";
+		else fileName = "bc7enc-macos-x64";
+		return COMPRESSION_DIRECTORY + "/" + fileName;
 	}
 }
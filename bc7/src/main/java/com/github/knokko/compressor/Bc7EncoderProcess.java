@@ -0,0 +1,125 @@
+package com.github.knokko.compressor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Runs a single bc7enc process. This is shared by <i>Bc7Compressor</i> and <i>Bc7CompressionPool</i>.
+ */
+class Bc7EncoderProcess {
+
+	/**
+	 * The flags that are passed to bc7enc, after the input file
+	 */
+	static final List<String> FLAGS = List.of("-g", "-q");
+
+	/**
+	 * Encodes <i>image</i> using the encoder <i>executable</i>, which is run in <i>directory</i>. The image is passed
+	 * to the encoder as uncompressed PNG, since deflating and inflating the pixels would take a significant part of
+	 * the time.
+	 * @param timeoutMillis The maximum time the process may take, in milliseconds, or 0 to wait forever
+	 * @param processCallback Will be called right after the process has been started, may be null
+	 * @param direct Whether the payload should be read into a direct buffer. Otherwise, it is read into a heap buffer,
+	 *               whose <i>array()</i> is exactly the payload.
+	 * @return A buffer containing the BC7 payload
+	 */
+	static ByteBuffer run(
+			BufferedImage image, String executable, File directory, long timeoutMillis,
+			Consumer<Process> processCallback, boolean direct
+	) throws IOException, InterruptedException, TimeoutException {
+		String name = UUID.randomUUID().toString();
+		File source = new File(directory + "/" + name + ".png");
+		File destination = new File(directory + "/" + name + ".dds");
+		// The error output is redirected to a file, since a pipe could fill up and block the encoder
+		File errors = new File(directory + "/" + name + ".err");
+		source.deleteOnExit();
+		errors.deleteOnExit();
+
+		try {
+			UncompressedPngWriter.write(image, source.toPath());
+
+			List<String> command = new ArrayList<>(2 + FLAGS.size());
+			command.add(executable);
+			command.add("./" + name + ".png");
+			command.addAll(FLAGS);
+
+			var processBuilder = new ProcessBuilder(command);
+			processBuilder.directory(directory);
+			processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+			processBuilder.redirectError(errors);
+			var process = processBuilder.start();
+			if (processCallback != null) processCallback.accept(process);
+
+			try {
+				if (timeoutMillis > 0L) {
+					if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+						throw new TimeoutException("Bc7 compression took longer than " + timeoutMillis + " ms");
+					}
+				} else process.waitFor();
+			} finally {
+				if (process.isAlive()) kill(process);
+			}
+
+			if (process.exitValue() != 0) {
+				String errorOutput = new String(Files.readAllBytes(errors.toPath()));
+				throw new IOException("Bc7 compression failed: " + errorOutput.lines().collect(Collectors.joining()));
+			}
+
+			return readPayload(destination, direct);
+		} finally {
+			if (source.exists() && !source.delete()) System.out.println("Warning: failed to delete " + source);
+			if (destination.exists() && !destination.delete()) {
+				System.out.println("Warning: failed to delete " + destination);
+			}
+			if (errors.exists() && !errors.delete()) System.out.println("Warning: failed to delete " + errors);
+		}
+	}
+
+	/**
+	 * Reads the BC7 payload from the DDS file that was created by bc7enc
+	 */
+	private static ByteBuffer readPayload(File ddsFile, boolean direct) throws IOException {
+		try (var channel = FileChannel.open(ddsFile.toPath())) {
+			// The magic number (4 bytes), the DDS_HEADER (124 bytes), and (usually) the DDS_HEADER_DXT10 (20 bytes)
+			var header = ByteBuffer.allocate(148).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && channel.read(header) != -1) {}
+			header.flip();
+			if (header.limit() < 128 || header.getInt(0) != 0x20534444 || header.getInt(4) != 124) {
+				throw new IOException("bc7enc created an invalid DDS file");
+			}
+
+			boolean hasDx10Header = header.getInt(84) == 0x30315844;
+			long payloadOffset = hasDx10Header ? 148 : 128;
+			long payloadSize = channel.size() - payloadOffset;
+			if (payloadSize > Integer.MAX_VALUE) throw new IOException("DDS file is too large: " + channel.size());
+
+			int size = (int) payloadSize;
+			var payload = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.wrap(new byte[size]);
+			channel.position(payloadOffset);
+			while (payload.hasRemaining()) {
+				if (channel.read(payload) == -1) throw new IOException("Unexpected end of " + ddsFile);
+			}
+			return payload.flip();
+		}
+	}
+
+	/**
+	 * Kills <i>process</i> and all its descendants
+	 */
+	static void kill(Process process) {
+		process.descendants().forEach(ProcessHandle::destroyForcibly);
+		process.destroyForcibly();
+	}
+}
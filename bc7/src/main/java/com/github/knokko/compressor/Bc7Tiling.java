@@ -0,0 +1,67 @@
+package com.github.knokko.compressor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits images into tiles that are aligned to 4x4 blocks, and stitches the BC7 payloads of these tiles together.
+ * Since BC7 payloads store the blocks in row-major order, the payload of a tile can be copied block row by block row
+ * into the payload of the whole image.
+ */
+class Bc7Tiling {
+
+	/**
+	 * The size of 1 BC7 block, in bytes
+	 */
+	static final int BLOCK_SIZE = 16;
+
+	record Tile(int x, int y, int width, int height) {}
+
+	/**
+	 * Splits an image of <i>width</i> x <i>height</i> pixels into tiles of at most <i>tileWidth</i> x
+	 * <i>tileHeight</i> pixels. The tiles at the right and bottom edges may be smaller.
+	 */
+	static List<Tile> split(int width, int height, int tileWidth, int tileHeight) {
+		if (tileWidth <= 0 || tileHeight <= 0 || tileWidth % 4 != 0 || tileHeight % 4 != 0) {
+			throw new IllegalArgumentException(
+					"Tile width (" + tileWidth + ") and height (" + tileHeight + ") must be positive multiples of 4"
+			);
+		}
+
+		List<Tile> tiles = new ArrayList<>();
+		for (int y = 0; y < height; y += tileHeight) {
+			for (int x = 0; x < width; x += tileWidth) {
+				tiles.add(new Tile(x, y, Math.min(tileWidth, width - x), Math.min(tileHeight, height - y)));
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * @return The size (in bytes) of the BC7 payload of an image of <i>width</i> x <i>height</i> pixels
+	 */
+	static int payloadSize(int width, int height) {
+		return BLOCK_SIZE * ((width + 3) / 4) * ((height + 3) / 4);
+	}
+
+	/**
+	 * Copies the BC7 payload of <i>tile</i> to its place in the payload of the whole image
+	 */
+	static void stitch(byte[] imagePayload, int imageWidth, Tile tile, byte[] tilePayload) {
+		int numImageBlocksX = (imageWidth + 3) / 4;
+		int numTileBlocksX = (tile.width + 3) / 4;
+		int numTileBlocksY = (tile.height + 3) / 4;
+		if (tilePayload.length < payloadSize(tile.width, tile.height)) {
+			throw new IllegalArgumentException(
+					"Expected at least " + payloadSize(tile.width, tile.height) + " bytes for " + tile +
+							", but got " + tilePayload.length
+			);
+		}
+
+		int rowSize = BLOCK_SIZE * numTileBlocksX;
+		for (int blockY = 0; blockY < numTileBlocksY; blockY++) {
+			int destinationBlock = (tile.y / 4 + blockY) * numImageBlocksX + tile.x / 4;
+			System.arraycopy(tilePayload, blockY * rowSize, imagePayload, BLOCK_SIZE * destinationBlock, rowSize);
+		}
+	}
+}
@@ -3,13 +3,28 @@ package com.github.knokko.compressor;
 import org.junit.jupiter.api.Test;
 
 import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.List;
 import java.util.Objects;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.github.knokko.compressor.TestHelper.assertImageEquals;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
 
 public class TestBc7Compression {
 
@@ -35,4 +50,338 @@ public class TestBc7Compression {
 		assertTrue(size > 70_000, "Expected size to be at least 70KB, but got " + size);
 		assertTrue(size < 85_000, "Expected size to be at most 85 KB, but got " + size);
 	}
+
+	/**
+	 * Creates a shell script that can be used as stand-in for bc7enc. The script will execute <i>body</i>, in which
+	 * {@code $1} is the input image, and {@code $OUTPUT} is the path of the DDS file that it should create.
+	 */
+	private static File createStandInEncoder(File directory, String body) throws IOException {
+		assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+		File script = new File(directory + "/stand-in-encoder.sh");
+		Files.writeString(script.toPath(), "#!/bin/sh\nOUTPUT=\"${1%.*}.dds\"\n" + body + "\n");
+		assertTrue(script.setExecutable(true));
+		script.deleteOnExit();
+		return script;
+	}
+
+	/**
+	 * This stand-in encoder just puts the input file after a 148-byte DDS header, which contains only the magic number,
+	 * the header size (124), and the DX10 four-CC
+	 */
+	private static final String COPY_INPUT = "{ printf 'DDS \\174\\000\\000\\000'; head -c 76 /dev/zero; " +
+			"printf DX10; head -c 60 /dev/zero; cat \"$1\"; } > \"$OUTPUT\"";
+
+	private static byte[] createFakeDdsHeader() {
+		var header = ByteBuffer.allocate(148).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(0, "DDS ".getBytes());
+		header.putInt(4, 124);
+		header.put(84, "DX10".getBytes());
+		return header.array();
+	}
+
+	private static BufferedImage createRandomImage(Random rng, int width, int height) {
+		var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) image.setRGB(x, y, rng.nextInt());
+		}
+		return image;
+	}
+
+	private static void assertStandInResult(BufferedImage expected, byte[] result) throws IOException {
+		assertImageEquals(expected, ImageIO.read(new ByteArrayInputStream(result)));
+	}
+
+	@Test
+	public void testCompressionPoolLimitsProcesses() throws Exception {
+		File directory = Files.createTempDirectory("").toFile();
+		directory.deleteOnExit();
+		File log = new File(directory + "/log.txt");
+		log.deleteOnExit();
+		var encoder = createStandInEncoder(
+				directory, "echo start >> log.txt\nsleep 0.2\necho end >> log.txt\n" + COPY_INPUT
+		);
+
+		var rng = new Random(1234);
+		var pool = new Bc7CompressionPool(encoder.getAbsolutePath(), directory, 2, 10_000L);
+		BufferedImage[] images = new BufferedImage[6];
+		@SuppressWarnings("unchecked")
+		CompletableFuture<byte[]>[] futures = new CompletableFuture[images.length];
+		for (int index = 0; index < images.length; index++) {
+			images[index] = createRandomImage(rng, 4 * (1 + index), 8);
+			futures[index] = pool.compress(images[index]);
+		}
+
+		for (int index = 0; index < images.length; index++) assertStandInResult(images[index], futures[index].get());
+		pool.close();
+
+		int numRunning = 0;
+		int maxRunning = 0;
+		List<String> lines = Files.readAllLines(log.toPath());
+		assertEquals(2 * images.length, lines.size());
+		for (String line : lines) {
+			if (line.equals("start")) numRunning += 1;
+			else numRunning -= 1;
+			maxRunning = Math.max(maxRunning, numRunning);
+		}
+		assertTrue(maxRunning <= 2, "At most 2 processes should run at the same time, but got " + maxRunning);
+
+		String[] leftOvers = directory.list(
+				(dir, name) -> name.endsWith(".dds") || name.endsWith(".png") || name.endsWith(".err")
+		);
+		assertNotNull(leftOvers);
+		assertEquals(0, leftOvers.length);
+	}
+
+	@Test
+	public void testCompressionPoolFailures() throws Exception {
+		File directory = Files.createTempDirectory("").toFile();
+		directory.deleteOnExit();
+		var image = createRandomImage(new Random(1), 8, 4);
+
+		var failingEncoder = createStandInEncoder(directory, "echo nope >&2\nexit 3");
+		var pool = new Bc7CompressionPool(failingEncoder.getAbsolutePath(), directory, 1, 10_000L);
+		var failure = assertThrows(ExecutionException.class, () -> pool.compress(image).get());
+		assertInstanceOf(IOException.class, failure.getCause());
+		assertTrue(failure.getCause().getMessage().contains("nope"), failure.getCause().getMessage());
+		var tiledFailure = assertThrows(ExecutionException.class, () -> pool.compressTiled(image, 4, 4).get());
+		assertInstanceOf(IOException.class, tiledFailure.getCause());
+		pool.close();
+
+		// An encoder that writes a lot of error output must not block
+		var chattyEncoder = createStandInEncoder(
+				directory, "head -c 1000000 /dev/zero | tr '\\000' x >&2\n" + COPY_INPUT
+		);
+		var chattyPool = new Bc7CompressionPool(chattyEncoder.getAbsolutePath(), directory, 1, 5_000L);
+		assertStandInResult(image, chattyPool.compress(image).get());
+		chattyPool.close();
+
+		var slowEncoder = createStandInEncoder(directory, "sleep 10\n" + COPY_INPUT);
+		var timeoutPool = new Bc7CompressionPool(slowEncoder.getAbsolutePath(), directory, 1, 200L);
+		long startTime = System.nanoTime();
+		var timeout = assertThrows(ExecutionException.class, () -> timeoutPool.compress(image).get());
+		assertInstanceOf(TimeoutException.class, timeout.getCause());
+		assertTrue(System.nanoTime() - startTime < 5_000_000_000L);
+		timeoutPool.close();
+
+		var cancelPool = new Bc7CompressionPool(slowEncoder.getAbsolutePath(), directory, 1, 0L);
+		var running = cancelPool.compress(image);
+		var queued = cancelPool.compress(image);
+		Thread.sleep(200);
+		startTime = System.nanoTime();
+		assertTrue(queued.cancel(true));
+		assertTrue(running.cancel(true));
+		assertThrows(CancellationException.class, running::join);
+		cancelPool.close();
+		assertTrue(System.nanoTime() - startTime < 5_000_000_000L, "Cancelling should kill the process");
+	}
+
+	/**
+	 * A fake BC7 encoder that 'compresses' each 4x4 block independently, like bc7enc does. It is used as stand-in
+	 * encoder to test the tiled compression, since its results are deterministic.
+	 */
+	public static class FakeEncoder {
+
+		static byte[] encode(BufferedImage image) {
+			int numBlocksX = (image.getWidth() + 3) / 4;
+			int numBlocksY = (image.getHeight() + 3) / 4;
+			byte[] payload = new byte[16 * numBlocksX * numBlocksY];
+			for (int blockY = 0; blockY < numBlocksY; blockY++) {
+				for (int blockX = 0; blockX < numBlocksX; blockX++) {
+					for (int pixel = 0; pixel < 16; pixel++) {
+						int x = Math.min(4 * blockX + pixel % 4, image.getWidth() - 1);
+						int y = Math.min(4 * blockY + pixel / 4, image.getHeight() - 1);
+						int argb = image.getRGB(x, y);
+						payload[16 * (blockX + numBlocksX * blockY) + pixel] = (byte) (argb ^ (argb >> 8) ^ (argb >> 16) ^ (argb >> 24));
+					}
+				}
+			}
+			return payload;
+		}
+
+		public static void main(String[] args) throws IOException {
+			var image = ImageIO.read(new File(args[0]));
+			String output = args[0].substring(0, args[0].lastIndexOf('.')) + ".dds";
+			try (var fileOutput = Files.newOutputStream(new File(output).toPath())) {
+				fileOutput.write(createFakeDdsHeader());
+				fileOutput.write(encode(image));
+			}
+		}
+	}
+
+	private static File createFakeEncoder(File directory) throws IOException {
+		String java = System.getProperty("java.home") + "/bin/java";
+		return createStandInEncoder(directory, "exec '" + java + "' -Djava.awt.headless=true -cp '" +
+				System.getProperty("java.class.path") + "' '" + FakeEncoder.class.getName() + "' \"$1\"");
+	}
+
+	@Test
+	public void testTiledCompression() throws Exception {
+		File directory = Files.createTempDirectory("").toFile();
+		directory.deleteOnExit();
+		var encoder = createFakeEncoder(directory);
+
+		// Use a size that is not a multiple of 4, to test the padding of the edge blocks
+		var image = createRandomImage(new Random(5678), 30, 22);
+		byte[] expected = FakeEncoder.encode(image);
+
+		try (var pool = new Bc7CompressionPool(encoder.getAbsolutePath(), directory, 4, 60_000L)) {
+			assertArrayEquals(expected, pool.compress(image).get());
+			assertArrayEquals(expected, pool.compressTiled(image, 8, 12).get());
+			assertArrayEquals(expected, pool.compressTiled(image).get());
+			assertThrows(IllegalArgumentException.class, () -> pool.compressTiled(image, 6, 8));
+		}
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		File directory = Files.createTempDirectory("").toFile();
+		directory.deleteOnExit();
+		File cacheDirectory = new File(directory + "/cache");
+		var rng = new Random(42);
+
+		// Each 8x8 image has a payload of 4 blocks = 64 bytes, so the cache can hold 3 of them
+		var cache = new Bc7Cache(cacheDirectory.toPath(), 200);
+		BufferedImage[] images = new BufferedImage[4];
+		for (int index = 0; index < images.length; index++) images[index] = createRandomImage(rng, 8, 8);
+
+		assertNull(cache.get(images[0]));
+		assertEquals(1, cache.getNumMisses());
+		for (int index = 0; index < 3; index++) cache.put(images[index], FakeEncoder.encode(images[index]));
+		assertEquals(192, cache.getTotalSize());
+
+		// Use image 0, so image 1 becomes the least recently used image
+		assertArrayEquals(FakeEncoder.encode(images[0]), cache.get(images[0]));
+		assertEquals(1, cache.getNumHits());
+
+		cache.put(images[3], FakeEncoder.encode(images[3]));
+		assertEquals(192, cache.getTotalSize());
+		assertNull(cache.get(images[1]));
+		assertNotNull(cache.get(images[0]));
+		assertNotNull(cache.get(images[2]));
+		assertNotNull(cache.get(images[3]));
+		assertEquals(4, cache.getNumHits());
+		assertEquals(2, cache.getNumMisses());
+
+		// The key of non-gray images should only depend on the pixels, not on the image type
+		var copy = new BufferedImage(8, 8, BufferedImage.TYPE_4BYTE_ABGR);
+		for (int x = 0; x < 8; x++) {
+			for (int y = 0; y < 8; y++) copy.setRGB(x, y, images[0].getRGB(x, y));
+		}
+		assertEquals(Bc7Cache.key(images[0]), Bc7Cache.key(copy));
+		copy.setRGB(3, 5, ~copy.getRGB(3, 5));
+		assertNotEquals(Bc7Cache.key(images[0]), Bc7Cache.key(copy));
+
+		// The raw samples of gray images are given to bc7enc, so they must be part of the key, even when getRGB
+		// would map them to the same color
+		int[][] collidingSamples = {
+				{ BufferedImage.TYPE_USHORT_GRAY, 40000, 40001 },
+				{ BufferedImage.TYPE_BYTE_GRAY, 75, 76 }
+		};
+		for (int[] samples : collidingSamples) {
+			var gray1 = new BufferedImage(4, 4, samples[0]);
+			var gray2 = new BufferedImage(4, 4, samples[0]);
+			gray1.getRaster().setSample(1, 2, 0, samples[1]);
+			gray2.getRaster().setSample(1, 2, 0, samples[2]);
+			assertEquals(gray1.getRGB(1, 2), gray2.getRGB(1, 2));
+			assertNotEquals(Bc7Cache.key(gray1), Bc7Cache.key(gray2));
+		}
+
+		// The entries should survive when the cache is reopened
+		String[] leftOvers = cacheDirectory.list((dir, name) -> !name.endsWith(".bc7"));
+		assertNotNull(leftOvers);
+		assertEquals(0, leftOvers.length);
+
+		// Only old temporary files should be deleted, since young ones may still be written by another process
+		File staleTempFile = new File(cacheDirectory + "/stale.tmp");
+		File youngTempFile = new File(cacheDirectory + "/young.tmp");
+		assertTrue(staleTempFile.createNewFile());
+		assertTrue(youngTempFile.createNewFile());
+		assertTrue(staleTempFile.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000L));
+
+		var reopened = new Bc7Cache(cacheDirectory.toPath(), 200);
+		assertFalse(staleTempFile.exists());
+		assertTrue(youngTempFile.delete());
+		assertEquals(192, reopened.getTotalSize());
+		assertArrayEquals(FakeEncoder.encode(images[3]), reopened.get(images[3]));
+		assertNull(reopened.get(images[1]));
+
+		// Only the first compression of an image should run the encoder
+		var encoder = createFakeEncoder(directory);
+		File log = new File(directory + "/log.txt");
+		log.deleteOnExit();
+		Files.writeString(encoder.toPath(), Files.readString(encoder.toPath()).replace("exec", "echo run >> log.txt\nexec"));
+		try (var pool = new Bc7CompressionPool(encoder.getAbsolutePath(), directory, 2, 60_000L)) {
+			var newImage = createRandomImage(rng, 12, 4);
+			assertArrayEquals(FakeEncoder.encode(newImage), reopened.compress(pool, newImage).get());
+			assertArrayEquals(FakeEncoder.encode(newImage), reopened.compress(pool, newImage).get());
+		}
+		assertEquals(1, Files.readAllLines(log.toPath()).size());
+		assertEquals(2, reopened.getNumHits());
+		assertEquals(2, reopened.getNumMisses());
+
+		// Cancelling the future of the cache should kill the encoder process
+		var slowEncoder = createStandInEncoder(directory, "sleep 10\n" + COPY_INPUT);
+		var cancelPool = new Bc7CompressionPool(slowEncoder.getAbsolutePath(), directory, 1, 0L);
+		var running = reopened.compress(cancelPool, createRandomImage(rng, 4, 4));
+		Thread.sleep(200);
+		long startTime = System.nanoTime();
+		assertTrue(running.cancel(true));
+		cancelPool.close();
+		assertTrue(System.nanoTime() - startTime < 5_000_000_000L, "Cancelling should kill the process");
+
+		File[] cacheFiles = cacheDirectory.listFiles();
+		assertNotNull(cacheFiles);
+		for (File file : cacheFiles) file.deleteOnExit();
+		cacheDirectory.deleteOnExit();
+	}
+
+	@Test
+	public void testUncompressedPngWriter() throws IOException {
+		File directory = Files.createTempDirectory("").toFile();
+		directory.deleteOnExit();
+		File file = new File(directory + "/test.png");
+		file.deleteOnExit();
+
+		var rng = new Random(12);
+		// The 200x100 image needs multiple stored deflate blocks
+		for (var image : new BufferedImage[] { createRandomImage(rng, 1, 1), createRandomImage(rng, 200, 100) }) {
+			UncompressedPngWriter.write(image, file.toPath());
+			assertImageEquals(image, ImageIO.read(file));
+
+			var png = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			png.position(8);
+			int numChunks = 0;
+			while (png.hasRemaining()) {
+				int length = png.getInt();
+				var crc = new CRC32();
+				crc.update(png.array(), png.position(), 4 + length);
+				png.position(png.position() + 4 + length);
+				assertEquals((int) crc.getValue(), png.getInt());
+				numChunks += 1;
+			}
+			assertEquals(3, numChunks);
+		}
+
+		// Gray images should be written as gray PNG with their raw samples, like ImageIO.write does
+		for (int type : new int[] { BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY }) {
+			var image = new BufferedImage(30, 20, type);
+			for (int x = 0; x < 30; x++) {
+				for (int y = 0; y < 20; y++) {
+					image.getRaster().setSample(x, y, 0, rng.nextInt(type == BufferedImage.TYPE_BYTE_GRAY ? 256 : 65536));
+				}
+			}
+			UncompressedPngWriter.write(image, file.toPath());
+			assertEquals(0, Files.readAllBytes(file.toPath())[25]);
+
+			var expected = new ByteArrayOutputStream();
+			assertTrue(ImageIO.write(image, "PNG", expected));
+			var expectedImage = ImageIO.read(new ByteArrayInputStream(expected.toByteArray()));
+			var actualImage = ImageIO.read(file);
+			assertEquals(type, actualImage.getType());
+			assertArrayEquals(
+					expectedImage.getRaster().getSamples(0, 0, 30, 20, 0, (int[]) null),
+					actualImage.getRaster().getSamples(0, 0, 30, 20, 0, (int[]) null)
+			);
+		}
+	}
 }
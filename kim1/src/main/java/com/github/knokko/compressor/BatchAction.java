@@ -0,0 +1,29 @@
+package com.github.knokko.compressor;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs <i>task</i> for each index in the range <i>[minIndex, boundIndex)</i>, by recursively splitting the range
+ */
+class BatchAction extends RecursiveAction {
+
+	private final int minIndex, boundIndex;
+	private final IntConsumer task;
+
+	BatchAction(int minIndex, int boundIndex, IntConsumer task) {
+		this.minIndex = minIndex;
+		this.boundIndex = boundIndex;
+		this.task = task;
+	}
+
+	@Override
+	protected void compute() {
+		if (boundIndex - minIndex <= 4) {
+			for (int index = minIndex; index < boundIndex; index++) task.accept(index);
+		} else {
+			int middleIndex = (minIndex + boundIndex) / 2;
+			invokeAll(new BatchAction(minIndex, middleIndex, task), new BatchAction(middleIndex, boundIndex, task));
+		}
+	}
+}
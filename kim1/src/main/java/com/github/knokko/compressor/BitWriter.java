@@ -1,6 +1,7 @@
 package com.github.knokko.compressor;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 class BitWriter {
 
@@ -18,7 +19,7 @@ class BitWriter {
 		return unpacked;
 	}
 
-	private final ByteBuffer byteBuffer;
+	private ByteBuffer byteBuffer;
 	private int bitIndex;
 	private long bits;
 
@@ -26,6 +27,10 @@ class BitWriter {
 		this.byteBuffer = byteBuffer;
 	}
 
+	public void setByteBuffer(ByteBuffer byteBuffer) {
+		this.byteBuffer = byteBuffer;
+	}
+
 	public void write(int value, int numBits) {
 		bits |= (long) value << bitIndex;
 		bitIndex += numBits;
@@ -39,13 +44,14 @@ class BitWriter {
 
 	public void flush() {
 		if (bitIndex > 0) {
-			ByteBuffer dummyBuffer = ByteBuffer.allocate(4).order(byteBuffer.order());
-			dummyBuffer.putInt(0, (int) bits);
-
-			byteBuffer.put(dummyBuffer.get());
-			if (bitIndex > 8) byteBuffer.put(dummyBuffer.get());
-			if (bitIndex > 16) byteBuffer.put(dummyBuffer.get());
-			if (bitIndex > 32) byteBuffer.put(dummyBuffer.get());
+			// Write the bytes in the same order as putInt would
+			int remaining = (int) bits;
+			if (byteBuffer.order() == ByteOrder.BIG_ENDIAN) remaining = Integer.reverseBytes(remaining);
+
+			byteBuffer.put((byte) remaining);
+			if (bitIndex > 8) byteBuffer.put((byte) (remaining >> 8));
+			if (bitIndex > 16) byteBuffer.put((byte) (remaining >> 16));
+			if (bitIndex > 24) byteBuffer.put((byte) (remaining >> 24));
 			bits = 0;
 			bitIndex = 0;
 		}
@@ -0,0 +1,98 @@
+package com.github.knokko.compressor;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table that maps packed colors to their index in the color table, without boxing. The
+ * indices are assigned in insertion order, so {@link #color(int)} can be used to iterate over the color table.
+ */
+class ColorIndexTable {
+
+	private int[] keys;
+	private int[] values;
+	private int[] colors;
+	private int mask;
+	private int size;
+
+	ColorIndexTable(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(8, 2 * expectedSize - 1)) << 1;
+		this.keys = new int[capacity];
+		this.values = new int[capacity];
+		this.colors = new int[capacity / 2];
+		this.mask = capacity - 1;
+		Arrays.fill(values, -1);
+	}
+
+	private static int hash(int color) {
+		int hash = color * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Gets the index of {@code color} in the color table, and adds it to the color table if it wasn't there yet
+	 */
+	int indexOf(int color) {
+		int slot = hash(color) & mask;
+		while (true) {
+			int value = values[slot];
+			if (value == -1) break;
+			if (keys[slot] == color) return value;
+			slot = (slot + 1) & mask;
+		}
+
+		int index = size;
+		keys[slot] = color;
+		values[slot] = index;
+		colors[index] = color;
+		size += 1;
+		if (2 * size >= keys.length) grow();
+		return index;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new int[2 * oldKeys.length];
+		values = new int[2 * oldValues.length];
+		colors = Arrays.copyOf(colors, keys.length / 2);
+		mask = keys.length - 1;
+		Arrays.fill(values, -1);
+
+		for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+			if (oldValues[oldSlot] == -1) continue;
+			int slot = hash(oldKeys[oldSlot]) & mask;
+			while (values[slot] != -1) slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[oldSlot];
+			values[slot] = oldValues[oldSlot];
+		}
+	}
+
+	/**
+	 * The number of distinct colors in the color table
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the color at the given index of the color table
+	 */
+	int color(int index) {
+		return colors[index];
+	}
+
+	/**
+	 * Copies the color table to a new array, whose length is {@link #size()}
+	 */
+	int[] toArray() {
+		return Arrays.copyOf(colors, size);
+	}
+
+	/**
+	 * Removes all colors from the color table, without shrinking it
+	 */
+	void clear() {
+		if (size > 0) Arrays.fill(values, -1);
+		size = 0;
+	}
+}
@@ -0,0 +1,113 @@
+package com.github.knokko.compressor;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class can be used to compress many images to my kim1 format at once, using the threads of a
+ * <i>ForkJoinPool</i>. Each thread uses its own <i>Kim1CompressionSession</i>, so the scratch buffers are reused for
+ * all images that the thread compresses. All compressed images will be stored contiguously, and the offset of each
+ * compressed image (in <b>int</b>s) can be obtained using <i>getIntOffsets()</i>.
+ */
+public class Kim1BatchCompressor {
+
+	/**
+	 * An image that should be compressed by a <i>Kim1BatchCompressor</i>. See the constructor of
+	 * <i>Kim1Compressor</i> for the meaning of the parameters. The <i>position()</i> of <i>pixelBuffer</i> will
+	 * <b>not</b> be modified.
+	 */
+	public record Source(ByteBuffer pixelBuffer, int width, int height, int numDataChannels) {}
+
+	/**
+	 * The total size of all compressed images, in <b>int</b>s (4 <b>byte</b>s)
+	 */
+	public final int intSize;
+	private final ForkJoinPool pool;
+	private final List<Source> sources;
+	private final int[] intOffsets;
+	private final Kim1Compressor.Probe[] probes;
+	private final int[][] palettes;
+
+	/**
+	 * Constructs a new <i>Kim1BatchCompressor</i> that uses the common <i>ForkJoinPool</i>
+	 * @see #Kim1BatchCompressor(ForkJoinPool, List)
+	 */
+	public Kim1BatchCompressor(List<Source> sources) throws Kim1CompressionException {
+		this(ForkJoinPool.commonPool(), sources);
+	}
+
+	/**
+	 * Constructs a new <i>Kim1BatchCompressor</i> capable of compressing all the given <i>sources</i>. This
+	 * constructor will already probe all images in parallel, using the threads of <i>pool</i>, and remember their
+	 * color tables, so that <i>compress</i> doesn't need to analyze them again. The pixel data of the sources must not
+	 * be modified until all <i>compress</i> calls are finished.
+	 * @param pool The pool whose threads should be used to analyze and compress the images
+	 * @param sources The images that should be compressed
+	 * @throws Kim1CompressionException When at least 1 of the images can <b>not</b> be compressed to kim1
+	 */
+	public Kim1BatchCompressor(ForkJoinPool pool, List<Source> sources) throws Kim1CompressionException {
+		this.pool = pool;
+		this.sources = List.copyOf(sources);
+		this.probes = new Kim1Compressor.Probe[sources.size()];
+		this.palettes = new int[sources.size()][];
+		pool.invoke(new BatchAction(0, probes.length, index -> {
+			var source = this.sources.get(index);
+			var colorTable = new ColorIndexTable(256);
+			var probe = Kim1Compressor.probe(
+					source.pixelBuffer, source.width, source.height, source.numDataChannels, colorTable
+			);
+			if (probe == null) throw new Kim1CompressionException(
+					"Image " + index + " is too large, or has too many distinct colors"
+			);
+			probes[index] = probe;
+			palettes[index] = colorTable.toArray();
+		}));
+
+		this.intOffsets = new int[probes.length];
+		int nextIntOffset = 0;
+		for (int index = 0; index < probes.length; index++) {
+			intOffsets[index] = nextIntOffset;
+			nextIntOffset += probes[index].intSize();
+		}
+		this.intSize = nextIntOffset;
+	}
+
+	/**
+	 * Gets the offset (in <b>int</b>s) of each compressed image, relative to the <i>position()</i> that the
+	 * <i>destination</i> had when <i>compress</i> was called. When the destination starts at the start of the
+	 * <b>uint</b> array of your shader, you can pass these offsets straight to the <i>sampleKim</i> function.
+	 * Otherwise, you need to add the offset of the destination to them.
+	 */
+	public int[] getIntOffsets() {
+		return intOffsets.clone();
+	}
+
+	/**
+	 * Compresses all source images in parallel, and stores the results in <i>destination</i>. Note:
+	 * <ul>
+	 *     <li><i>destination</i> must have at least <b>this.intSize * 4</b> bytes <i>remaining()</i></li>
+	 *     <li>this method will increase the <i>position()</i> of <i>destination</i></li>
+	 * </ul>
+	 */
+	public void compress(ByteBuffer destination) {
+		if (4L * intSize > destination.remaining()) {
+			throw new IllegalArgumentException("Expected at least " + 4L * intSize + " remaining bytes, but got " +
+					destination.remaining());
+		}
+		int startPosition = destination.position();
+		pool.invoke(new BatchAction(0, intOffsets.length, index -> {
+			var source = sources.get(index);
+			var session = Kim1CompressionSession.forCurrentThread();
+			session.prepare(
+					source.pixelBuffer, source.pixelBuffer.position(), source.numDataChannels * source.width,
+					source.width, source.height, source.numDataChannels, probes[index], palettes[index]
+			);
+
+			var imageDestination = destination.duplicate().order(destination.order());
+			imageDestination.position(startPosition + 4 * intOffsets[index]);
+			session.compress(imageDestination);
+		}));
+		destination.position(startPosition + 4 * intSize);
+	}
+}
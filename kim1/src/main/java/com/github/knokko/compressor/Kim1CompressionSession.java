@@ -0,0 +1,276 @@
+package com.github.knokko.compressor;
+
+import com.github.knokko.boiler.buffers.MappedVkbBufferRange;
+
+import java.nio.ByteBuffer;
+
+import static com.github.knokko.boiler.utilities.ColorPacker.*;
+import static com.github.knokko.compressor.BitWriter.computeBitsPerPixel;
+import static com.github.knokko.compressor.BitWriter.pack;
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memPutInt;
+
+/**
+ * A reusable alternative to <i>Kim1Compressor</i>: you can use 1 <i>Kim1CompressionSession</i> to compress any
+ * number of images, one after another. Unlike <i>Kim1Compressor</i>, it reuses its internal buffers, so it won't
+ * allocate any memory after it has compressed the largest image. Since these buffers are bounded by the maximum size
+ * of a kim1 image, a session will never use more than a few megabytes.
+ * <p>
+ * To compress an image, you need to call <i>prepare(...)</i>, followed by <i>compress(destination)</i>. A
+ * <i>Kim1CompressionSession</i> is <b>not</b> thread-safe: you need 1 session per thread.
+ * </p>
+ */
+public class Kim1CompressionSession {
+
+	private static final int MAX_COLORS = 1023;
+
+	private static final ThreadLocal<Kim1CompressionSession> THREAD_SESSIONS = ThreadLocal.withInitial(
+			Kim1CompressionSession::new
+	);
+
+	/**
+	 * Gets the session of the current thread. This is used by the compressors that compress images in parallel, so
+	 * that each (pool) thread keeps at most 1 session, no matter how many of these compressors it has worked for.
+	 */
+	static Kim1CompressionSession forCurrentThread() {
+		return THREAD_SESSIONS.get();
+	}
+
+	// This capacity is large enough to hold MAX_COLORS + 1 colors without growing
+	private final ColorIndexTable colorTable = new ColorIndexTable(2048);
+	private final BitWriter bitWriter = new BitWriter(null);
+	private int[] colorIndices = new int[0];
+
+	private int width, height, numChannels, intSize;
+
+	/**
+	 * Prepares this session to compress the image stored in <i>pixelBuffer</i>. The parameters have the same meaning
+	 * as those of the constructor of <i>Kim1Compressor</i>, but this method will <b>not</b> change the
+	 * <i>position()</i> of <i>pixelBuffer</i>. The previously prepared image (if any) is forgotten.
+	 * @return The size of the compressed image, in <b>int</b>s (4 <b>byte</b>s)
+	 * @throws Kim1CompressionException When the width, height, or number of distinct colors, is greater than or equal
+	 * to 1024. This session can still be used to prepare other images.
+	 */
+	public int prepare(ByteBuffer pixelBuffer, int width, int height, int numDataChannels) throws Kim1CompressionException {
+		this.intSize = 0;
+		if (width >= 1024) throw new Kim1CompressionException("The width " + width + " must be smaller than 1024");
+		if (height >= 1024) throw new Kim1CompressionException("The height " + height + " must be smaller than 1024");
+		Kim1Compressor.validateArguments(pixelBuffer, width, height, numDataChannels);
+
+		return prepare(pixelBuffer, pixelBuffer.position(), numDataChannels * width, width, height, numDataChannels);
+	}
+
+	/**
+	 * Prepares this session to compress the sub-image whose top-left pixel is stored at (absolute) index
+	 * <i>position</i> of <i>pixelBuffer</i>. The pixel data of row <i>y</i> of the sub-image starts at
+	 * <i>position + y * rowStride</i>. The caller must ensure that the width and height are valid.
+	 */
+	int prepare(
+			ByteBuffer pixelBuffer, int position, int rowStride,
+			int width, int height, int numDataChannels
+	) throws Kim1CompressionException {
+		this.intSize = 0;
+		int numPixels = width * height;
+		if (colorIndices.length < numPixels) colorIndices = new int[numPixels];
+		colorTable.clear();
+
+		int numChannels = 1;
+		int pixelIndex = 0;
+		for (int y = 0; y < height; y++) {
+			int rowPosition = position + y * rowStride;
+			int boundPosition = rowPosition + width * numDataChannels;
+			for (int pixelPosition = rowPosition; pixelPosition < boundPosition; pixelPosition += numDataChannels) {
+				byte red = pixelBuffer.get(pixelPosition);
+				byte green = numDataChannels >= 2 ? pixelBuffer.get(pixelPosition + 1) : red;
+				byte blue = numDataChannels >= 3 ? pixelBuffer.get(pixelPosition + 2) : green;
+				byte alpha = numDataChannels == 4 ? pixelBuffer.get(pixelPosition + 3) : -1;
+
+				colorIndices[pixelIndex] = colorTable.indexOf(rgba(red, green, blue, alpha));
+				pixelIndex += 1;
+				if (colorTable.size() > MAX_COLORS) {
+					throw new Kim1CompressionException("Too many distinct colors: at least " + colorTable.size() +
+							"; at most " + MAX_COLORS + " are allowed");
+				}
+				if (numChannels < 4 && alpha != -1) numChannels = 4;
+				if (numChannels < 3 && blue != green) numChannels = 3;
+				if (numChannels < 2 && green != red) numChannels = 2;
+			}
+		}
+
+		this.width = width;
+		this.height = height;
+		this.numChannels = numChannels;
+		this.intSize = Kim1Compressor.computeIntSize(width, height, numChannels, colorTable.size());
+		return intSize;
+	}
+
+	/**
+	 * Prepares this session to compress the sub-image at <i>position</i> (see above), which has already been probed
+	 * using <i>Kim1Compressor.probe</i>. Since <i>palette</i> contains the colors that the probe encountered (in
+	 * the same order), this only needs to look up the color index of each pixel.
+	 * @throws IllegalStateException When the image contains a color that is not in <i>palette</i>, which means that
+	 * its pixel data was modified after it was probed
+	 */
+	void prepare(
+			ByteBuffer pixelBuffer, int position, int rowStride,
+			int width, int height, int numDataChannels, Kim1Compressor.Probe probe, int[] palette
+	) {
+		this.intSize = 0;
+		int numPixels = width * height;
+		if (colorIndices.length < numPixels) colorIndices = new int[numPixels];
+		colorTable.clear();
+		for (int color : palette) colorTable.indexOf(color);
+
+		int pixelIndex = 0;
+		for (int y = 0; y < height; y++) {
+			int rowPosition = position + y * rowStride;
+			int boundPosition = rowPosition + width * numDataChannels;
+			for (int pixelPosition = rowPosition; pixelPosition < boundPosition; pixelPosition += numDataChannels) {
+				byte red = pixelBuffer.get(pixelPosition);
+				byte green = numDataChannels >= 2 ? pixelBuffer.get(pixelPosition + 1) : red;
+				byte blue = numDataChannels >= 3 ? pixelBuffer.get(pixelPosition + 2) : green;
+				byte alpha = numDataChannels == 4 ? pixelBuffer.get(pixelPosition + 3) : -1;
+				colorIndices[pixelIndex] = colorTable.indexOf(rgba(red, green, blue, alpha));
+				pixelIndex += 1;
+			}
+		}
+		if (colorTable.size() != palette.length) {
+			throw new IllegalStateException("The pixel data was modified after it was probed");
+		}
+
+		this.width = width;
+		this.height = height;
+		this.numChannels = probe.numChannels();
+		this.intSize = probe.intSize();
+	}
+
+	/**
+	 * @return The width of the prepared image, in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The height of the prepared image, in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The size of the compressed prepared image, in <b>int</b>s (4 <b>byte</b>s), or 0 when no image is
+	 * prepared
+	 */
+	public int getIntSize() {
+		return intSize;
+	}
+
+	/**
+	 * Compresses the prepared image, and stores the result in <i>destination</i>. Note:
+	 * <ul>
+	 *     <li><i>destination</i> must have at least <b>getIntSize() * 4</b> bytes <i>remaining()</i></li>
+	 *     <li>this method will increase the <i>position()</i> of <i>destination</i></li>
+	 *     <li>the prepared image can be compressed multiple times</li>
+	 * </ul>
+	 * @throws IllegalStateException When no image was prepared successfully
+	 */
+	public void compress(ByteBuffer destination) throws IllegalStateException {
+		if (intSize == 0) throw new IllegalStateException("No image has been prepared successfully");
+		int startPosition = destination.position();
+		int numColors = colorTable.size();
+		int bitsPerPixel = computeBitsPerPixel(numColors);
+
+		// Header
+		destination.putInt(
+				pack(width, 0) | pack(height, 10) |
+						pack(numColors, 20) | pack(numChannels - 1, 30)
+		);
+
+		// Color table
+		for (int index = 0; index < numColors; index++) {
+			int color = colorTable.color(index);
+			destination.put(red(color));
+			if (numChannels >= 2) destination.put(green(color));
+			if (numChannels >= 3) destination.put(blue(color));
+			if (numChannels >= 4) destination.put(alpha(color));
+		}
+
+		// Color indices
+		bitWriter.setByteBuffer(destination);
+		int numPixels = width * height;
+		for (int pixelIndex = 0; pixelIndex < numPixels; pixelIndex++) {
+			bitWriter.write(colorIndices[pixelIndex], bitsPerPixel);
+		}
+
+		bitWriter.flush();
+		bitWriter.setByteBuffer(null);
+		while ((destination.position() - startPosition) % 4 != 0) destination.put((byte) 0);
+	}
+
+	/**
+	 * Compresses the prepared image, and writes the result directly to the (native) memory at <i>address</i>, using
+	 * <i>MemoryUtil</i> of LWJGL. The caller must ensure that at least <b>getIntSize() * 4</b> bytes can be written
+	 * to <i>address</i>.
+	 * @return The number of <b>int</b>s that were written, which is always <i>getIntSize()</i>
+	 * @throws IllegalStateException When no image was prepared successfully
+	 */
+	public int compress(long address) throws IllegalStateException {
+		if (intSize == 0) throw new IllegalStateException("No image has been prepared successfully");
+		int numColors = colorTable.size();
+		int bitsPerPixel = computeBitsPerPixel(numColors);
+		int colorBits = 8 * numChannels;
+		long colorMask = (1L << colorBits) - 1L;
+
+		// Header
+		memPutInt(address, pack(width, 0) | pack(height, 10) | pack(numColors, 20) | pack(numChannels - 1, 30));
+		long nextAddress = address + 4;
+
+		// The color table and color indices form 1 bit stream: the lowest bitIndex bits of 'bits' are pending
+		long bits = 0;
+		int bitIndex = 0;
+		for (int index = 0; index < numColors; index++) {
+			bits |= (colorTable.color(index) & colorMask) << bitIndex;
+			bitIndex += colorBits;
+			if (bitIndex >= 32) {
+				memPutInt(nextAddress, (int) bits);
+				nextAddress += 4;
+				bits >>>= 32;
+				bitIndex -= 32;
+			}
+		}
+
+		int numPixels = width * height;
+		for (int pixelIndex = 0; pixelIndex < numPixels; pixelIndex++) {
+			bits |= (long) colorIndices[pixelIndex] << bitIndex;
+			bitIndex += bitsPerPixel;
+			if (bitIndex >= 32) {
+				memPutInt(nextAddress, (int) bits);
+				nextAddress += 4;
+				bits >>>= 32;
+				bitIndex -= 32;
+			}
+		}
+
+		if (bitIndex > 0) {
+			memPutInt(nextAddress, (int) bits);
+			nextAddress += 4;
+		}
+		return (int) ((nextAddress - address) / 4);
+	}
+
+	/**
+	 * Compresses the prepared image, and writes the result directly to the mapped memory of <i>destination</i>
+	 * @param destination The destination range, whose size must be at least <b>getIntSize() * 4</b> bytes
+	 * @return The number of <b>int</b>s that were written, which is always <i>getIntSize()</i>
+	 * @throws IllegalStateException When no image was prepared successfully
+	 */
+	public int compress(MappedVkbBufferRange destination) throws IllegalStateException {
+		var hostBuffer = destination.byteBuffer();
+		if (4L * intSize > hostBuffer.remaining()) {
+			throw new IllegalArgumentException("Expected at least " + 4L * intSize + " bytes, but got " +
+					hostBuffer.remaining());
+		}
+		return compress(memAddress(hostBuffer));
+	}
+}
@@ -1,12 +1,12 @@
 package com.github.knokko.compressor;
 
+import com.github.knokko.boiler.buffers.MappedVkbBufferRange;
+
 import java.nio.ByteBuffer;
-import java.util.*;
 
 import static com.github.knokko.boiler.utilities.BoilerMath.nextMultipleOf;
-import static com.github.knokko.boiler.utilities.ColorPacker.*;
+import static com.github.knokko.boiler.utilities.ColorPacker.rgba;
 import static com.github.knokko.compressor.BitWriter.computeBitsPerPixel;
-import static com.github.knokko.compressor.BitWriter.pack;
 
 /**
  * This class can be used to compress images to my kim1 format.
@@ -21,9 +21,7 @@ public class Kim1Compressor {
 	 * The size of the compressed image, in <b>int</b>s (4 <b>byte</b>s)
 	 */
 	public final int intSize;
-	private final int numChannels;
-	private final Map<Integer, Integer> colorTable = new HashMap<>();
-	private final int[] pixelBuffer;
+	private final Kim1CompressionSession session = new Kim1CompressionSession();
 
 	/**
 	 * Constructs a new <i>Kim1Compressor</i> capable of compressing the image stored in <i>pixelBuffer</i>.
@@ -48,8 +46,13 @@ public class Kim1Compressor {
 	 * to 1024.
 	 */
 	public Kim1Compressor(ByteBuffer pixelBuffer, int width, int height, int numDataChannels) throws Kim1CompressionException {
-		if (width >= 1024) throw new Kim1CompressionException("The width " + width + " must be smaller than 1024");
-		if (height >= 1024) throw new Kim1CompressionException("The height " + height + " must be smaller than 1024");
+		this.intSize = session.prepare(pixelBuffer, width, height, numDataChannels);
+		this.width = width;
+		this.height = height;
+		pixelBuffer.position(pixelBuffer.position() + numDataChannels * width * height);
+	}
+
+	static void validateArguments(ByteBuffer pixelBuffer, int width, int height, int numDataChannels) {
 		if (width < 1 || height < 1) throw new IllegalArgumentException("Both width and height must be positive");
 		if (numDataChannels > 4) throw new IllegalArgumentException("Too many data channels, at most 4 are supported");
 		if (numDataChannels < 1) throw new IllegalArgumentException("Number of data channels must be positive");
@@ -58,36 +61,81 @@ public class Kim1Compressor {
 			throw new IllegalArgumentException("Expected imageData to have a length of at least " + expectedSize +
 					", but got " + pixelBuffer.remaining());
 		}
-		this.width = width;
-		this.height = height;
+	}
+
+	static int computeIntSize(int width, int height, int numChannels, int numColors) {
+		int dataBitSize = 8 * numColors * numChannels + computeBitsPerPixel(numColors) * width * height;
+		return 1 + nextMultipleOf(dataBitSize, 32) / 32;
+	}
+
+	/**
+	 * The result of {@link #probe}
+	 * @param intSize The size that the compressed image would have, in <b>int</b>s (4 <b>byte</b>s)
+	 * @param numChannels The number of channels (1 to 4) that the colors in the color table would have
+	 * @param numColors The number of distinct colors in the image
+	 */
+	public record Probe(int intSize, int numChannels, int numColors) {}
+
+	/**
+	 * Checks whether the given image can be compressed to kim1, and computes the size that it would have. This is
+	 * much cheaper than constructing a <i>Kim1Compressor</i>, since it doesn't copy the image, and stops as soon as
+	 * the image turns out to have too many distinct colors. The parameters have the same meaning as those of the
+	 * constructor, but this method will <b>not</b> change the <i>position()</i> of <i>pixelBuffer</i>.
+	 * @return The {@link Probe} of the image, or <i>null</i> when the image can <b>not</b> be compressed to kim1
+	 * (in which case the constructor would throw a <i>Kim1CompressionException</i>)
+	 */
+	public static Probe probe(ByteBuffer pixelBuffer, int width, int height, int numDataChannels) {
+		return probe(pixelBuffer, width, height, numDataChannels, new ColorIndexTable(256));
+	}
 
+	/**
+	 * Probes the given image like {@link #probe(ByteBuffer, int, int, int)}, and adds its colors to (the empty)
+	 * <i>colorTable</i>, so that the caller can reuse them
+	 */
+	static Probe probe(
+			ByteBuffer pixelBuffer, int width, int height, int numDataChannels, ColorIndexTable colorTable
+	) {
+		validateArguments(pixelBuffer, width, height, numDataChannels);
+		if (width >= 1024 || height >= 1024) return null;
+
+		return probe(
+				pixelBuffer, pixelBuffer.position(), numDataChannels * width,
+				width, height, numDataChannels, colorTable
+		);
+	}
+
+	/**
+	 * Probes the sub-image whose top-left pixel is stored at (absolute) index <i>position</i> of <i>pixelBuffer</i>.
+	 * The pixel data of row <i>y</i> of the sub-image starts at <i>position + y * rowStride</i>. The caller must
+	 * ensure that the width and height are valid.
+	 */
+	static Probe probe(ByteBuffer pixelBuffer, int position, int rowStride, int width, int height, int numDataChannels) {
+		return probe(pixelBuffer, position, rowStride, width, height, numDataChannels, new ColorIndexTable(256));
+	}
+
+	private static Probe probe(
+			ByteBuffer pixelBuffer, int position, int rowStride,
+			int width, int height, int numDataChannels, ColorIndexTable colorTable
+	) {
 		int numChannels = 1;
-		this.pixelBuffer = new int[pixelBuffer.remaining() / numDataChannels];
-		int bufferIndex = 0;
-
-		while (pixelBuffer.hasRemaining()) {
-			byte red = pixelBuffer.get();
-			byte green = numDataChannels >= 2 ? pixelBuffer.get() : red;
-			byte blue = numDataChannels >= 3 ? pixelBuffer.get() : green;
-			byte alpha = numDataChannels == 4 ? pixelBuffer.get() : -1;
-			int color = rgba(red, green, blue, alpha);
-			this.pixelBuffer[bufferIndex] = color;
-			bufferIndex += 1;
-			if (!colorTable.containsKey(color)) colorTable.put(color, colorTable.size());
-			if (numChannels < 4 && alpha != -1) numChannels = 4;
-			if (numChannels < 3 && blue != green) numChannels = 3;
-			if (numChannels < 2 && green != red) numChannels = 2;
-		}
 
-		this.numChannels = numChannels;
-		if (colorTable.size() >= 1024) {
-			throw new Kim1CompressionException(
-					"Too many distinct colors: " + colorTable.size() + "; at most 1023 are allowed"
-			);
+		for (int y = 0; y < height; y++) {
+			int rowPosition = position + y * rowStride;
+			int boundPosition = rowPosition + width * numDataChannels;
+			for (int pixelPosition = rowPosition; pixelPosition < boundPosition; pixelPosition += numDataChannels) {
+				byte red = pixelBuffer.get(pixelPosition);
+				byte green = numDataChannels >= 2 ? pixelBuffer.get(pixelPosition + 1) : red;
+				byte blue = numDataChannels >= 3 ? pixelBuffer.get(pixelPosition + 2) : green;
+				byte alpha = numDataChannels == 4 ? pixelBuffer.get(pixelPosition + 3) : -1;
+				colorTable.indexOf(rgba(red, green, blue, alpha));
+				if (colorTable.size() >= 1024) return null;
+				if (numChannels < 4 && alpha != -1) numChannels = 4;
+				if (numChannels < 3 && blue != green) numChannels = 3;
+				if (numChannels < 2 && green != red) numChannels = 2;
+			}
 		}
 
-		int dataBitSize = 8 * colorTable.size() * numChannels + computeBitsPerPixel(colorTable.size()) * width * height;
-		this.intSize = 1 + nextMultipleOf(dataBitSize, 32) / 32;
+		return new Probe(computeIntSize(width, height, numChannels, colorTable.size()), numChannels, colorTable.size());
 	}
 
 	/**
@@ -98,36 +146,25 @@ public class Kim1Compressor {
 	 * </ul>
 	 */
 	public void compress(ByteBuffer destination) {
-		int bitsPerPixel = computeBitsPerPixel(colorTable.size());
-
-		// Header
-		destination.putInt(
-				pack(width, 0) | pack(height, 10) |
-						pack(colorTable.size(), 20) | pack(numChannels - 1, 30)
-		);
-
-		// Color table
-		var colorEntries = new ArrayList<>(colorTable.entrySet());
-		colorEntries.sort(Comparator.comparingInt(Map.Entry::getValue));
-		for (var entry : colorEntries) {
-			int color = entry.getKey();
-			destination.put(red(color));
-			if (numChannels >= 2) destination.put(green(color));
-			if (numChannels >= 3) destination.put(blue(color));
-			if (numChannels >= 4) destination.put(alpha(color));
-		}
+		session.compress(destination);
+	}
 
-		// Color indices
-		var bitWriter = new BitWriter(destination);
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				int color = pixelBuffer[x + width * y];
-				int colorIndex = colorTable.get(color);
-				bitWriter.write(colorIndex, bitsPerPixel);
-			}
-		}
+	/**
+	 * Compresses the source image, and writes the result directly to the (native) memory at <i>address</i>, using
+	 * <i>MemoryUtil</i> of LWJGL. The caller must ensure that at least <b>this.intSize * 4</b> bytes can be written
+	 * to <i>address</i>.
+	 * @return The number of <b>int</b>s that were written, which is always <i>intSize</i>
+	 */
+	public int compress(long address) {
+		return session.compress(address);
+	}
 
-		bitWriter.flush();
-		while (destination.position() % 4 != 0) destination.put((byte) 0);
+	/**
+	 * Compresses the source image, and writes the result directly to the mapped memory of <i>destination</i>
+	 * @param destination The destination range, whose size must be at least <b>this.intSize * 4</b> bytes
+	 * @return The number of <b>int</b>s that were written, which is always <i>intSize</i>
+	 */
+	public int compress(MappedVkbBufferRange destination) {
+		return session.compress(destination);
 	}
 }
@@ -1,9 +1,13 @@
 package com.github.knokko.compressor;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
-import static com.github.knokko.boiler.utilities.ColorPacker.green;
-import static com.github.knokko.boiler.utilities.ColorPacker.red;
+import static com.github.knokko.boiler.utilities.ColorPacker.*;
 import static com.github.knokko.compressor.BitWriter.*;
 
 /**
@@ -63,6 +67,98 @@ public class Kim1Decompressor {
 		return color;
 	}
 
+	/**
+	 * Decompresses the whole image, and stores the recovered image in {@code output}: it will write
+	 * {@code width * height} ints to {@code output}, where the {@code i}'th int stores the color of the pixel at
+	 * {@code (x = i % width, y = i / width)}, packed using the <i>ColorPacker</i> of vk-boiler. This is much faster
+	 * than calling <i>getColor</i> for each pixel.
+	 * @param output The buffer to which the recovered image data should be written
+	 */
+	public void decompress(IntBuffer output) {
+		int[] pixels = new int[width * height];
+		decompress(decompressColorTable(), pixels);
+		output.put(pixels);
+	}
+
+	/**
+	 * Decompresses the whole image, and stores the recovered image in {@code rgba8}, using 4 bytes per pixel, in
+	 * RGBA order, regardless of the byte order of {@code rgba8}. This method will write {@code 4 * width * height}
+	 * bytes, and increase the <i>position()</i> of {@code rgba8} accordingly.
+	 * @param rgba8 The buffer to which the recovered image data should be written
+	 */
+	public void decompress(ByteBuffer rgba8) {
+		int[] colorTable = decompressColorTable();
+		if (rgba8.order() != ByteOrder.LITTLE_ENDIAN) {
+			for (int index = 0; index < colorTable.length; index++) {
+				colorTable[index] = Integer.reverseBytes(colorTable[index]);
+			}
+		}
+
+		int[] pixels = new int[width * height];
+		decompress(colorTable, pixels);
+		rgba8.asIntBuffer().put(pixels);
+		rgba8.position(rgba8.position() + 4 * pixels.length);
+	}
+
+	/**
+	 * Decompresses the whole image, and returns the recovered image as <i>BufferedImage</i> with type
+	 * <i>TYPE_INT_ARGB</i>
+	 */
+	public BufferedImage decompressToImage() {
+		int[] colorTable = decompressColorTable();
+		for (int index = 0; index < colorTable.length; index++) colorTable[index] = toArgb(colorTable[index]);
+
+		var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		decompress(colorTable, ((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+		return image;
+	}
+
+	static int toArgb(int color) {
+		return (unsigned(alpha(color)) << 24) | (unsigned(red(color)) << 16) |
+				(unsigned(green(color)) << 8) | unsigned(blue(color));
+	}
+
+	int[] decompressColorTable() {
+		int[] colorTable = new int[numColors];
+		for (int colorIndex = 0; colorIndex < numColors; colorIndex++) {
+			int color = readInt(32 + colorIndex * 8 * numChannels, 8 * numChannels);
+			if (numChannels < 2) color |= red(color) << 8;
+			if (numChannels < 3) color |= green(color) << 16;
+			if (numChannels < 4) color |= 255 << 24;
+			colorTable[colorIndex] = color;
+		}
+		return colorTable;
+	}
+
+	void decompress(int[] colorTable, int[] pixels) {
+		int numPixels = width * height;
+		int bitsPerPixel = computeBitsPerPixel(numColors);
+		if (bitsPerPixel == 0) {
+			Arrays.fill(pixels, 0, numPixels, colorTable[0]);
+			return;
+		}
+
+		int startBitIndex = 32 + 8 * numColors * numChannels;
+		int intIndex = startBitIndex / 32;
+		int startPosition = compressedData.position();
+
+		// The next bitIndex bits of 'bits' are the next bits of the color indices
+		long bits = Integer.toUnsignedLong(compressedData.getInt(startPosition + 4 * intIndex)) >>> (startBitIndex % 32);
+		int bitIndex = 32 - startBitIndex % 32;
+		long bitMask = (1L << bitsPerPixel) - 1L;
+
+		for (int pixelIndex = 0; pixelIndex < numPixels; pixelIndex++) {
+			if (bitIndex < bitsPerPixel) {
+				intIndex += 1;
+				bits |= Integer.toUnsignedLong(compressedData.getInt(startPosition + 4 * intIndex)) << bitIndex;
+				bitIndex += 32;
+			}
+			pixels[pixelIndex] = colorTable[(int) (bits & bitMask)];
+			bits >>>= bitsPerPixel;
+			bitIndex -= bitsPerPixel;
+		}
+	}
+
 	private int readInt(int bitIndex, int bitLength) {
 		int intIndex1 = bitIndex / 32;
 		int bitIndex1 = bitIndex % 32;
@@ -0,0 +1,164 @@
+package com.github.knokko.compressor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This class can be used to compress images that are too large for the kim1 format, by splitting them into tiles that
+ * are compressed independently. Each tile has its own color table, so only the number of distinct colors <b>per
+ * tile</b> needs to be smaller than 1024. The tiles are compressed in parallel, using the threads of a
+ * <i>ForkJoinPool</i>.
+ * <p>
+ * The compressed data is stored in the following layout (1 element per <b>int</b>):
+ * <ul>
+ *     <li>the image width in the lowest 16 bits, and the image height in the highest 16 bits</li>
+ *     <li>the tile width in the lowest 16 bits, and the tile height in the highest 16 bits</li>
+ *     <li>
+ *         for each tile (in row-major order), the offset (in <b>int</b>s) of its compressed kim1 data,
+ *         relative to the start of the compressed data
+ *     </li>
+ *     <li>the compressed kim1 data of each tile</li>
+ * </ul>
+ * Tiles in the last column or row are smaller when the image size is not a multiple of the tile size.
+ * </p>
+ */
+public class Kim1TiledCompressor {
+
+	/**
+	 * The maximum supported width and height, in pixels
+	 */
+	public static final int MAX_SIZE = 65535;
+
+	/**
+	 * The dimensions of the compressed image, in pixels
+	 */
+	public final int width, height;
+	/**
+	 * The dimensions of each tile, in pixels (except the tiles at the right edge and bottom edge)
+	 */
+	public final int tileWidth, tileHeight;
+	/**
+	 * The size of the compressed image, including its header and tile index, in <b>int</b>s (4 <b>byte</b>s)
+	 */
+	public final int intSize;
+
+	private final ForkJoinPool pool;
+	private final ByteBuffer pixelBuffer;
+	private final int startPosition, numDataChannels, numTilesX, numTilesY;
+	private final int[] tileOffsets;
+
+	/**
+	 * Constructs a new <i>Kim1TiledCompressor</i> that uses the common <i>ForkJoinPool</i>
+	 * @see #Kim1TiledCompressor(ForkJoinPool, ByteBuffer, int, int, int, int)
+	 */
+	public Kim1TiledCompressor(
+			ByteBuffer pixelBuffer, int width, int height, int numDataChannels, int tileSize
+	) throws Kim1CompressionException {
+		this(ForkJoinPool.commonPool(), pixelBuffer, width, height, numDataChannels, tileSize);
+	}
+
+	/**
+	 * Constructs a new <i>Kim1TiledCompressor</i> capable of compressing the image stored in <i>pixelBuffer</i>.
+	 * This constructor will already probe all tiles in parallel. The pixel data must not be modified until all
+	 * <i>compress</i> calls are finished, and the <i>position()</i> of <i>pixelBuffer</i> will <b>not</b> be modified.
+	 * @param pool The pool whose threads should be used to analyze and compress the tiles
+	 * @param pixelBuffer The buffer that contains all the image data. See the constructor of <i>Kim1Compressor</i>
+	 * @param width The width of the image, in pixels, at most {@link #MAX_SIZE}
+	 * @param height The height of the image, in pixels, at most {@link #MAX_SIZE}
+	 * @param numDataChannels The number of bytes per pixel. See the constructor of <i>Kim1Compressor</i>
+	 * @param tileSize The width and height of each tile, in pixels, must be between 1 and 1023
+	 * @throws Kim1CompressionException When at least 1 tile has 1024 or more distinct colors
+	 */
+	public Kim1TiledCompressor(
+			ForkJoinPool pool, ByteBuffer pixelBuffer, int width, int height, int numDataChannels, int tileSize
+	) throws Kim1CompressionException {
+		if (width > MAX_SIZE || height > MAX_SIZE) {
+			throw new IllegalArgumentException("Invalid size: (" + width + ", " + height + ")");
+		}
+		if (tileSize < 1 || tileSize >= 1024) {
+			throw new IllegalArgumentException("The tile size " + tileSize + " must be between 1 and 1023");
+		}
+		if ((long) numDataChannels * width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The image is too large to fit in a ByteBuffer");
+		}
+		Kim1Compressor.validateArguments(pixelBuffer, width, height, numDataChannels);
+
+		this.width = width;
+		this.height = height;
+		this.tileWidth = Math.min(tileSize, width);
+		this.tileHeight = Math.min(tileSize, height);
+		this.pool = pool;
+		this.pixelBuffer = pixelBuffer;
+		this.startPosition = pixelBuffer.position();
+		this.numDataChannels = numDataChannels;
+		this.numTilesX = (width + tileWidth - 1) / tileWidth;
+		this.numTilesY = (height + tileHeight - 1) / tileHeight;
+
+		int[] tileSizes = new int[numTilesX * numTilesY];
+		pool.invoke(new BatchAction(0, tileSizes.length, tileIndex -> {
+			int tileX = tileIndex % numTilesX;
+			int tileY = tileIndex / numTilesX;
+			var probe = Kim1Compressor.probe(
+					pixelBuffer, tilePosition(tileX, tileY), numDataChannels * width,
+					tileWidth(tileX), tileHeight(tileY), numDataChannels
+			);
+			if (probe == null) {
+				throw new Kim1CompressionException("Tile (" + tileX + ", " + tileY + ") has too many distinct colors");
+			}
+			tileSizes[tileIndex] = probe.intSize();
+		}));
+
+		this.tileOffsets = new int[tileSizes.length];
+		int nextIntOffset = 2 + tileSizes.length;
+		for (int tileIndex = 0; tileIndex < tileSizes.length; tileIndex++) {
+			tileOffsets[tileIndex] = nextIntOffset;
+			nextIntOffset += tileSizes[tileIndex];
+		}
+		this.intSize = nextIntOffset;
+	}
+
+	private int tileWidth(int tileX) {
+		return Math.min(tileWidth, width - tileX * tileWidth);
+	}
+
+	private int tileHeight(int tileY) {
+		return Math.min(tileHeight, height - tileY * tileHeight);
+	}
+
+	private int tilePosition(int tileX, int tileY) {
+		return startPosition + numDataChannels * (tileX * tileWidth + tileY * tileHeight * width);
+	}
+
+	/**
+	 * Compresses all tiles in parallel, and stores the result in <i>destination</i>. Note:
+	 * <ul>
+	 *     <li><i>destination</i> must have at least <b>this.intSize * 4</b> bytes <i>remaining()</i></li>
+	 *     <li>this method will increase the <i>position()</i> of <i>destination</i></li>
+	 * </ul>
+	 */
+	public void compress(ByteBuffer destination) {
+		if (4L * intSize > destination.remaining()) {
+			throw new IllegalArgumentException("Expected at least " + 4L * intSize + " remaining bytes, but got " +
+					destination.remaining());
+		}
+		int destinationPosition = destination.position();
+		destination.putInt(width | (height << 16));
+		destination.putInt(tileWidth | (tileHeight << 16));
+		for (int tileOffset : tileOffsets) destination.putInt(tileOffset);
+
+		pool.invoke(new BatchAction(0, tileOffsets.length, tileIndex -> {
+			int tileX = tileIndex % numTilesX;
+			int tileY = tileIndex / numTilesX;
+			var session = Kim1CompressionSession.forCurrentThread();
+			session.prepare(
+					pixelBuffer, tilePosition(tileX, tileY), numDataChannels * width,
+					tileWidth(tileX), tileHeight(tileY), numDataChannels
+			);
+
+			var tileDestination = destination.duplicate().order(destination.order());
+			tileDestination.position(destinationPosition + 4 * tileOffsets[tileIndex]);
+			session.compress(tileDestination);
+		}));
+		destination.position(destinationPosition + 4 * intSize);
+	}
+}
@@ -0,0 +1,125 @@
+package com.github.knokko.compressor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * This class can be used to recover the data of images compressed by <i>Kim1TiledCompressor</i>.
+ */
+public class Kim1TiledDecompressor {
+
+	/**
+	 * The width and height of the original image, in pixels
+	 */
+	public final int width, height;
+	private final int tileWidth, tileHeight, numTilesX, numTilesY;
+	private final ByteBuffer compressedData;
+	private final Kim1Decompressor[] tiles;
+
+	/**
+	 * Constructs a <i>Kim1TiledDecompressor</i> that can recover the original image from the given
+	 * <i>compressedData</i>
+	 * @param compressedData The data that was the result of compressing an image using <i>Kim1TiledCompressor</i>
+	 */
+	public Kim1TiledDecompressor(ByteBuffer compressedData) {
+		this.compressedData = compressedData;
+		int imageSize = compressedData.getInt(compressedData.position());
+		int tileSize = compressedData.getInt(compressedData.position() + 4);
+
+		this.width = imageSize & 0xFFFF;
+		this.height = imageSize >>> 16;
+		this.tileWidth = tileSize & 0xFFFF;
+		this.tileHeight = tileSize >>> 16;
+		this.numTilesX = (width + tileWidth - 1) / tileWidth;
+		this.numTilesY = (height + tileHeight - 1) / tileHeight;
+		this.tiles = new Kim1Decompressor[numTilesX * numTilesY];
+	}
+
+	private Kim1Decompressor getTile(int tileIndex) {
+		var tile = tiles[tileIndex];
+		if (tile == null) {
+			int tileOffset = compressedData.getInt(compressedData.position() + 8 + 4 * tileIndex);
+			var tileData = compressedData.duplicate().order(compressedData.order());
+			tileData.position(compressedData.position() + 4 * tileOffset);
+			tile = new Kim1Decompressor(tileData);
+			tiles[tileIndex] = tile;
+		}
+		return tile;
+	}
+
+	/**
+	 * Gets the color of the pixel at coordinates <i>(x, y)</i>, packed using the <i>ColorPacker</i> of vk-boiler.
+	 * @param x The x-coordinate of the pixel
+	 * @param y The y-coordinate of the pixel
+	 * @return The packed color of the pixel
+	 */
+	public int getColor(int x, int y) {
+		return getTile(x / tileWidth + numTilesX * (y / tileHeight)).getColor(x % tileWidth, y % tileHeight);
+	}
+
+	/**
+	 * Decompresses the whole image, and stores the recovered image in {@code output}: it will write
+	 * {@code width * height} ints to {@code output}, where the {@code i}'th int stores the color of the pixel at
+	 * {@code (x = i % width, y = i / width)}, packed using the <i>ColorPacker</i> of vk-boiler.
+	 * @param output The buffer to which the recovered image data should be written
+	 */
+	public void decompress(IntBuffer output) {
+		int[] pixels = new int[width * height];
+		decompress(pixels, ColorTransform.NONE);
+		output.put(pixels);
+	}
+
+	/**
+	 * Decompresses the whole image, and stores the recovered image in {@code rgba8}, using 4 bytes per pixel, in
+	 * RGBA order, regardless of the byte order of {@code rgba8}. This method will write {@code 4 * width * height}
+	 * bytes, and increase the <i>position()</i> of {@code rgba8} accordingly.
+	 * @param rgba8 The buffer to which the recovered image data should be written
+	 */
+	public void decompress(ByteBuffer rgba8) {
+		int[] pixels = new int[width * height];
+		decompress(pixels, rgba8.order() == ByteOrder.LITTLE_ENDIAN ? ColorTransform.NONE : ColorTransform.REVERSE);
+		rgba8.asIntBuffer().put(pixels);
+		rgba8.position(rgba8.position() + 4 * pixels.length);
+	}
+
+	/**
+	 * Decompresses the whole image, and returns the recovered image as <i>BufferedImage</i> with type
+	 * <i>TYPE_INT_ARGB</i>
+	 */
+	public BufferedImage decompressToImage() {
+		var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		decompress(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), ColorTransform.ARGB);
+		return image;
+	}
+
+	private enum ColorTransform {
+		NONE,
+		REVERSE,
+		ARGB
+	}
+
+	private void decompress(int[] pixels, ColorTransform transform) {
+		int[] tilePixels = new int[tileWidth * tileHeight];
+		for (int tileY = 0; tileY < numTilesY; tileY++) {
+			for (int tileX = 0; tileX < numTilesX; tileX++) {
+				var tile = getTile(tileX + numTilesX * tileY);
+				int[] colorTable = tile.decompressColorTable();
+				for (int index = 0; index < colorTable.length; index++) {
+					if (transform == ColorTransform.REVERSE) colorTable[index] = Integer.reverseBytes(colorTable[index]);
+					if (transform == ColorTransform.ARGB) colorTable[index] = Kim1Decompressor.toArgb(colorTable[index]);
+				}
+
+				tile.decompress(colorTable, tilePixels);
+				for (int y = 0; y < tile.height; y++) {
+					System.arraycopy(
+							tilePixels, y * tile.width, pixels,
+							tileX * tileWidth + (tileY * tileHeight + y) * width, tile.width
+					);
+				}
+			}
+		}
+	}
+}
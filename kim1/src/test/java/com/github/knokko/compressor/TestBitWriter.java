@@ -2,6 +2,9 @@ package com.github.knokko.compressor;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import static com.github.knokko.compressor.BitWriter.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -40,6 +43,25 @@ public class TestBitWriter {
 		}
 	}
 
+	@Test
+	public void testFlush() {
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+			for (int numBits = 1; numBits < 32; numBits++) {
+				var expected = ByteBuffer.allocate(4).order(order);
+				expected.putInt(0, (1 << numBits) - 1);
+
+				var buffer = ByteBuffer.allocate(4).order(order);
+				var bitWriter = new BitWriter(buffer);
+				bitWriter.write((1 << numBits) - 1, numBits);
+				bitWriter.flush();
+				assertEquals((numBits + 7) / 8, buffer.position());
+				for (int index = 0; index < buffer.position(); index++) {
+					assertEquals(expected.get(index), buffer.get(index));
+				}
+			}
+		}
+	}
+
 	@Test
 	public void testFullUnpack() {
 		int[] subjects = {-1, 0, 1, 123, Integer.MIN_VALUE, Integer.MAX_VALUE};
@@ -0,0 +1,43 @@
+package com.github.knokko.compressor;
+
+import org.junit.jupiter.api.Test;
+
+import static com.github.knokko.boiler.utilities.ColorPacker.rgb;
+import static com.github.knokko.boiler.utilities.ColorPacker.rgba;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestColorIndexTable {
+
+	@Test
+	public void testInsertionOrder() {
+		var table = new ColorIndexTable(4);
+		assertEquals(0, table.indexOf(rgb(1, 2, 3)));
+		assertEquals(1, table.indexOf(0));
+		assertEquals(2, table.indexOf(-1));
+		assertEquals(0, table.indexOf(rgb(1, 2, 3)));
+		assertEquals(1, table.indexOf(0));
+		assertEquals(3, table.size());
+
+		assertEquals(rgb(1, 2, 3), table.color(0));
+		assertEquals(0, table.color(1));
+		assertEquals(-1, table.color(2));
+	}
+
+	@Test
+	public void testGrowAndClear() {
+		var table = new ColorIndexTable(1);
+		for (int index = 0; index < 5000; index++) {
+			assertEquals(index, table.indexOf(rgba(index, index / 256, 7 * index, index / 100)));
+		}
+		assertEquals(5000, table.size());
+		for (int index = 0; index < 5000; index++) {
+			assertEquals(index, table.indexOf(rgba(index, index / 256, 7 * index, index / 100)));
+			assertEquals(rgba(index, index / 256, 7 * index, index / 100), table.color(index));
+		}
+
+		table.clear();
+		assertEquals(0, table.size());
+		assertEquals(0, table.indexOf(rgb(0, 0, 100)));
+		assertEquals(1, table.indexOf(rgb(1, 0, 0)));
+	}
+}
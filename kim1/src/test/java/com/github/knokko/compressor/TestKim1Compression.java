@@ -20,13 +20,22 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.Random;
 import java.util.function.Supplier;
 
 import static com.github.knokko.boiler.utilities.ColorPacker.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.system.MemoryUtil.*;
 import static org.lwjgl.vulkan.VK10.*;
@@ -71,6 +80,46 @@ public class TestKim1Compression {
 		memFree(simpleImage);
 	}
 
+	@Test
+	public void testBulkDecompression() {
+		var greyImage = BufferUtils.createByteBuffer(3 * 5);
+		for (int value : new int[] { 10, 20, 10, 30, 40, 10, 40, 30, 20, 10, 50, 50, 10, 20, 30 }) {
+			greyImage.put((byte) value);
+		}
+		greyImage.flip();
+
+		var compressor = new Kim1Compressor(greyImage, 3, 5, 1);
+		var compressedBuffer = BufferUtils.createByteBuffer(4 * compressor.intSize);
+		compressor.compress(compressedBuffer);
+		compressedBuffer.flip();
+
+		var decompressor = new Kim1Decompressor(compressedBuffer);
+		var intOutput = IntBuffer.allocate(3 * 5);
+		decompressor.decompress(intOutput);
+		assertFalse(intOutput.hasRemaining());
+
+		var byteOutput = ByteBuffer.allocate(4 * 3 * 5).order(ByteOrder.BIG_ENDIAN);
+		decompressor.decompress(byteOutput);
+		assertFalse(byteOutput.hasRemaining());
+
+		var imageOutput = decompressor.decompressToImage();
+		assertEquals(3, imageOutput.getWidth());
+		assertEquals(5, imageOutput.getHeight());
+
+		for (int y = 0; y < 5; y++) {
+			for (int x = 0; x < 3; x++) {
+				int value = greyImage.get(x + 3 * y);
+				int index = x + 3 * y;
+				assertEquals(rgb(value, value, value), intOutput.get(index));
+				assertEquals(rgb(value, value, value), rgba(
+						byteOutput.get(4 * index), byteOutput.get(4 * index + 1),
+						byteOutput.get(4 * index + 2), byteOutput.get(4 * index + 3)
+				));
+				assertEquals(new Color(value, value, value).getRGB(), imageOutput.getRGB(x, y));
+			}
+		}
+	}
+
 	private void testCompressAndDecompress(BoilerInstance boiler, File file) throws IOException {
 		var sourceImage = ImageIO.read(file);
 
@@ -106,6 +155,18 @@ public class TestKim1Compression {
 			}
 		}
 
+		var recoveredImage = decompressor.decompressToImage();
+		var recoveredBuffer = memAlloc(4 * sourceImage.getWidth() * sourceImage.getHeight());
+		decompressor.decompress(recoveredBuffer);
+		assertFalse(recoveredBuffer.hasRemaining());
+		for (int y = 0; y < sourceImage.getHeight(); y++) {
+			for (int x = 0; x < sourceImage.getWidth(); x++) {
+				assertEquals(sourceImage.getRGB(x, y), recoveredImage.getRGB(x, y));
+				assertEquals(decompressor.getColor(x, y), recoveredBuffer.getInt(4 * (x + y * sourceImage.getWidth())));
+			}
+		}
+
+		memFree(recoveredBuffer);
 		memFree(compressedData);
 
 		rawBuffer.destroy(boiler);
@@ -329,6 +390,215 @@ public class TestKim1Compression {
 		boiler.destroyInitialObjects();
 	}
 
+	@Test
+	public void testBatchCompression() {
+		var rng = new Random(1234);
+		var sources = new ArrayList<Kim1BatchCompressor.Source>();
+		for (int counter = 0; counter < 100; counter++) {
+			int width = 1 + rng.nextInt(50);
+			int height = 1 + rng.nextInt(50);
+			int numDataChannels = 1 + rng.nextInt(4);
+			int[] colors = new int[1 + rng.nextInt(50)];
+			for (int index = 0; index < colors.length; index++) colors[index] = rng.nextInt();
+
+			var pixelBuffer = BufferUtils.createByteBuffer(numDataChannels * width * height);
+			for (int pixel = 0; pixel < width * height; pixel++) {
+				int color = colors[rng.nextInt(colors.length)];
+				for (int channel = 0; channel < numDataChannels; channel++) pixelBuffer.put((byte) (color >> 8 * channel));
+			}
+			pixelBuffer.flip();
+			sources.add(new Kim1BatchCompressor.Source(pixelBuffer, width, height, numDataChannels));
+		}
+
+		var batchCompressor = new Kim1BatchCompressor(sources);
+		var batchDestination = BufferUtils.createByteBuffer(4 + 4 * batchCompressor.intSize);
+		batchDestination.putInt(1234);
+		batchCompressor.compress(batchDestination);
+		assertFalse(batchDestination.hasRemaining());
+
+		int[] intOffsets = batchCompressor.getIntOffsets();
+		for (int index = 0; index < sources.size(); index++) {
+			var source = sources.get(index);
+			assertEquals(0, source.pixelBuffer().position());
+
+			var compressor = new Kim1Compressor(
+					source.pixelBuffer(), source.width(), source.height(), source.numDataChannels()
+			);
+			var expected = BufferUtils.createByteBuffer(4 * compressor.intSize);
+			compressor.compress(expected);
+			expected.position(0);
+
+			var actual = batchDestination.slice(4 + 4 * intOffsets[index], 4 * compressor.intSize);
+			assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testBatchCompressionFailure() {
+		var tooLarge = new Kim1BatchCompressor.Source(BufferUtils.createByteBuffer(4 * 1024), 1024, 1, 4);
+		assertThrows(Kim1CompressionException.class, () -> new Kim1BatchCompressor(List.of(tooLarge)));
+	}
+
+	@Test
+	public void testProbe() {
+		var orangeBuffer = BufferUtils.createByteBuffer(3 * 2 * 2);
+		for (int counter = 0; counter < 3; counter++) {
+			orangeBuffer.put((byte) 255).put((byte) 255).put((byte) 0);
+		}
+		orangeBuffer.put((byte) 11).put((byte) 22).put((byte) 223);
+		orangeBuffer.flip();
+
+		var probe = Kim1Compressor.probe(orangeBuffer, 2, 2, 3);
+		assertEquals(0, orangeBuffer.position());
+		assertEquals(new Kim1Compressor.Probe(3, 3, 2), probe);
+		assertEquals(new Kim1Compressor(orangeBuffer, 2, 2, 3).intSize, probe.intSize());
+
+		var greyBuffer = BufferUtils.createByteBuffer(2 * 1000);
+		for (int counter = 0; counter < 1000; counter++) greyBuffer.put((byte) 100).put((byte) 100);
+		greyBuffer.flip();
+		assertEquals(new Kim1Compressor.Probe(2, 1, 1), Kim1Compressor.probe(greyBuffer, 500, 2, 2));
+
+		var colorfulBuffer = BufferUtils.createByteBuffer(4 * 2000);
+		for (int counter = 0; counter < 2000; counter++) colorfulBuffer.putInt(rgb(counter % 256, counter / 256, 0));
+		colorfulBuffer.flip();
+		assertNotNull(Kim1Compressor.probe(colorfulBuffer, 1023, 1, 4));
+		assertNull(Kim1Compressor.probe(colorfulBuffer, 1000, 2, 4));
+		assertNull(Kim1Compressor.probe(colorfulBuffer, 1024, 1, 4));
+		assertThrows(Kim1CompressionException.class, () -> new Kim1Compressor(colorfulBuffer, 1000, 2, 4));
+	}
+
+	@Test
+	public void testReuseSession() {
+		var session = new Kim1CompressionSession();
+		assertThrows(IllegalStateException.class, () -> session.compress(BufferUtils.createByteBuffer(100)));
+
+		var rng = new Random(12);
+		for (int counter = 0; counter < 50; counter++) {
+			int width = 1 + rng.nextInt(30);
+			int height = 1 + rng.nextInt(30);
+			int numColors = counter % 10 == 9 ? 1024 : 1 + rng.nextInt(100);
+			var pixelBuffer = BufferUtils.createByteBuffer(4 * numColors * width * height);
+			for (int pixel = 0; pixel < numColors * width * height; pixel++) {
+				pixelBuffer.putInt(rgba(pixel % numColors % 256, pixel % 7, 12, 255 - pixel % 3));
+			}
+			pixelBuffer.flip();
+
+			if (numColors == 1024) {
+				assertThrows(Kim1CompressionException.class, () -> session.prepare(pixelBuffer, 32, 32, 4));
+				assertEquals(0, session.getIntSize());
+				continue;
+			}
+
+			int intSize = session.prepare(pixelBuffer, width, height, 4);
+			assertEquals(0, pixelBuffer.position());
+			assertEquals(width, session.getWidth());
+			assertEquals(height, session.getHeight());
+			assertEquals(intSize, session.getIntSize());
+
+			var compressor = new Kim1Compressor(pixelBuffer, width, height, 4);
+			assertEquals(compressor.intSize, intSize);
+
+			var expected = BufferUtils.createByteBuffer(4 * intSize);
+			compressor.compress(expected);
+			assertFalse(expected.hasRemaining());
+			expected.flip();
+
+			var actual = BufferUtils.createByteBuffer(4 * intSize);
+			session.compress(actual);
+			assertFalse(actual.hasRemaining());
+			actual.flip();
+			assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testCompressToAddress() {
+		var rng = new Random(34);
+		for (int counter = 0; counter < 30; counter++) {
+			int width = 1 + rng.nextInt(40);
+			int height = 1 + rng.nextInt(40);
+			int numChannels = 1 + counter % 4;
+			int numColors = 1 + rng.nextInt(300);
+			var pixelBuffer = BufferUtils.createByteBuffer(numChannels * width * height);
+			for (int pixel = 0; pixel < width * height; pixel++) {
+				int value = rng.nextInt(numColors);
+				for (int channel = 0; channel < numChannels; channel++) {
+					pixelBuffer.put((byte) (value * (channel + 1)));
+				}
+			}
+			pixelBuffer.flip();
+
+			var compressor = new Kim1Compressor(pixelBuffer, width, height, numChannels);
+			var expected = BufferUtils.createByteBuffer(4 * compressor.intSize);
+			compressor.compress(expected);
+			expected.flip();
+
+			var actual = memCalloc(4 * compressor.intSize);
+			assertEquals(compressor.intSize, compressor.compress(memAddress(actual)));
+			assertEquals(expected, actual);
+			memFree(actual);
+		}
+	}
+
+	@Test
+	public void testLastByteRegression() {
+		// 28 color index bits will be written after the color table, so the last byte used to be dropped
+		var pixelBuffer = BufferUtils.createByteBuffer(14);
+		for (int value = 0; value < 14; value++) pixelBuffer.put((byte) (value % 3));
+		pixelBuffer.flip();
+
+		var compressor = new Kim1Compressor(pixelBuffer, 14, 1, 1);
+		var compressed = BufferUtils.createByteBuffer(4 * compressor.intSize);
+		compressor.compress(compressed);
+		assertFalse(compressed.hasRemaining());
+		compressed.flip();
+
+		var decompressor = new Kim1Decompressor(compressed);
+		for (int x = 0; x < 14; x++) assertEquals(rgb(x % 3, x % 3, x % 3), decompressor.getColor(x, 0));
+	}
+
+	@Test
+	public void testTiledCompression() {
+		int width = 1500;
+		int height = 1030;
+		var pixelBuffer = BufferUtils.createByteBuffer(3 * width * height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				pixelBuffer.put((byte) (x / 50)).put((byte) (y / 50)).put((byte) ((x + y) % 3));
+			}
+		}
+		pixelBuffer.flip();
+
+		assertThrows(Kim1CompressionException.class, () -> new Kim1Compressor(pixelBuffer, 1000, 1000, 3));
+		assertThrows(Kim1CompressionException.class, () -> new Kim1TiledCompressor(pixelBuffer, width, height, 3, 1000));
+
+		var compressor = new Kim1TiledCompressor(pixelBuffer, width, height, 3, 400);
+		assertEquals(0, pixelBuffer.position());
+		assertEquals(400, compressor.tileWidth);
+		assertEquals(400, compressor.tileHeight);
+
+		var compressed = BufferUtils.createByteBuffer(4 * compressor.intSize);
+		compressor.compress(compressed);
+		assertFalse(compressed.hasRemaining());
+		compressed.flip();
+
+		var decompressor = new Kim1TiledDecompressor(compressed);
+		assertEquals(width, decompressor.width);
+		assertEquals(height, decompressor.height);
+
+		var recoveredBuffer = IntBuffer.allocate(width * height);
+		decompressor.decompress(recoveredBuffer);
+		var recoveredImage = decompressor.decompressToImage();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int expected = rgb(x / 50, y / 50, (x + y) % 3);
+				assertEquals(expected, decompressor.getColor(x, y));
+				assertEquals(expected, recoveredBuffer.get(x + y * width));
+				assertEquals(new Color(x / 50, y / 50, (x + y) % 3).getRGB(), recoveredImage.getRGB(x, y));
+			}
+		}
+	}
+
 	@Test
 	public void orangeRegressionTest() {
 		var orangeBuffer = BufferUtils.createByteBuffer(3 * 2 * 2);
@@ -0,0 +1,109 @@
+package com.github.knokko.compressor;
+
+import java.nio.IntBuffer;
+
+import static com.github.knokko.boiler.utilities.ColorPacker.alpha;
+import static com.github.knokko.boiler.utilities.ColorPacker.unsigned;
+
+/**
+ * This class can choose the number of bits per pixel for the kim2 format, without compressing the image 4 times. It
+ * builds a histogram of the alpha values of the image in 1 pass, from which it computes the exact error of each
+ * number of bits per pixel. Note that only the alpha values are relevant: the red, green, and blue components of all
+ * pixels are replaced by the same color, regardless of the number of bits per pixel.
+ */
+public class Kim2BitsPerPixelSelector {
+
+	/**
+	 * The error that the kim2 compressor would introduce when using {@code bitsPerPixel}
+	 * @param bitsPerPixel The number of bits per pixel: 1, 2, 4, or 8
+	 * @param maxError The largest difference between the original alpha and the recovered alpha of a pixel
+	 * @param meanSquaredError The mean of the squared differences between the original and recovered alpha values
+	 * @param psnr The peak signal-to-noise ratio of the recovered alpha values, in decibels, which is
+	 *             {@link Double#POSITIVE_INFINITY} when there is no error
+	 */
+	public record Result(int bitsPerPixel, int maxError, double meanSquaredError, double psnr) {}
+
+	private static final int[] BITS_PER_PIXEL = { 1, 2, 4, 8 };
+
+	/**
+	 * Counts how often each alpha value occurs in the {@code numPixels} pixels starting at the position of
+	 * {@code input}, which are packed using {@link com.github.knokko.boiler.utilities.ColorPacker}. The position of
+	 * {@code input} is <b>not</b> modified.
+	 * @return An array of length 256, where element {@code i} is the number of pixels whose alpha is {@code i}
+	 */
+	public static long[] alphaHistogram(IntBuffer input, int numPixels) {
+		long[] histogram = new long[256];
+		int minIndex = input.position();
+		for (int index = minIndex; index < minIndex + numPixels; index++) {
+			histogram[unsigned(alpha(input.get(index)))] += 1;
+		}
+		return histogram;
+	}
+
+	/**
+	 * Computes the error that the kim2 compressor would introduce when compressing an image with the given alpha
+	 * {@code histogram}, using {@code bitsPerPixel}
+	 * @param histogram The alpha histogram of the image, see {@link #alphaHistogram(IntBuffer, int)}
+	 * @param bitsPerPixel The number of bits that would be used to store 1 pixel, must be either 1, 2, 4, or 8
+	 */
+	public static Result evaluate(long[] histogram, int bitsPerPixel) throws IllegalArgumentException {
+		Kim2Compressor.validateSize(0, 0, bitsPerPixel);
+		int stepSize = 255 / ((1 << bitsPerPixel) - 1);
+
+		int maxError = 0;
+		long numPixels = 0;
+		double totalSquaredError = 0.0;
+		for (int alpha = 0; alpha < 256; alpha++) {
+			if (histogram[alpha] == 0) continue;
+			int recoveredAlpha = stepSize * ((alpha + stepSize / 2) / stepSize);
+			int error = Math.abs(alpha - recoveredAlpha);
+			maxError = Math.max(maxError, error);
+			numPixels += histogram[alpha];
+			totalSquaredError += (double) histogram[alpha] * error * error;
+		}
+
+		double meanSquaredError = numPixels > 0 ? totalSquaredError / numPixels : 0.0;
+		double psnr = meanSquaredError > 0.0 ? 10.0 * Math.log10(255.0 * 255.0 / meanSquaredError) : Double.POSITIVE_INFINITY;
+		return new Result(bitsPerPixel, maxError, meanSquaredError, psnr);
+	}
+
+	/**
+	 * Chooses the smallest number of bits per pixel for which the error of each pixel is at most {@code maxError}.
+	 * The position of {@code input} is <b>not</b> modified.
+	 * @param input The image to be compressed, see {@link Kim2Compressor#compress(IntBuffer, int, int, IntBuffer, int)}
+	 * @param width The width of the image, in pixels
+	 * @param height The height of the image, in pixels
+	 * @param maxError The largest acceptable difference between the original and recovered alpha of a pixel
+	 * @return The chosen number of bits per pixel, and its error statistics. When no number of bits per pixel is
+	 * good enough (only possible when {@code maxError} is negative), the result for 8 bits per pixel is returned.
+	 */
+	public static Result selectForMaxError(IntBuffer input, int width, int height, int maxError) {
+		long[] histogram = alphaHistogram(input, width * height);
+		Result result = null;
+		for (int bitsPerPixel : BITS_PER_PIXEL) {
+			result = evaluate(histogram, bitsPerPixel);
+			if (result.maxError <= maxError) break;
+		}
+		return result;
+	}
+
+	/**
+	 * Chooses the smallest number of bits per pixel for which the PSNR of the alpha values is at least
+	 * {@code minPsnr}. The position of {@code input} is <b>not</b> modified.
+	 * @param input The image to be compressed, see {@link Kim2Compressor#compress(IntBuffer, int, int, IntBuffer, int)}
+	 * @param width The width of the image, in pixels
+	 * @param height The height of the image, in pixels
+	 * @param minPsnr The minimum acceptable peak signal-to-noise ratio, in decibels
+	 * @return The chosen number of bits per pixel, and its error statistics. Since 8 bits per pixel is lossless, it
+	 * will always satisfy the target.
+	 */
+	public static Result selectForPsnr(IntBuffer input, int width, int height, double minPsnr) {
+		long[] histogram = alphaHistogram(input, width * height);
+		Result result = null;
+		for (int bitsPerPixel : BITS_PER_PIXEL) {
+			result = evaluate(histogram, bitsPerPixel);
+			if (result.psnr >= minPsnr) break;
+		}
+		return result;
+	}
+}
@@ -1,11 +1,26 @@
 package com.github.knokko.compressor;
 
-import java.awt.*;
+import com.github.knokko.boiler.buffers.MappedVkbBufferRange;
+
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 import static com.github.knokko.boiler.utilities.ColorPacker.*;
 import static java.lang.Math.*;
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memPutInt;
 
 /**
  * This class has static methods to compress images to my 'kim2' image format, specialized for images where basically
@@ -18,7 +33,9 @@ public class Kim2Compressor {
 	 */
 	public static final int MAX_SIZE = Short.MAX_VALUE;
 
-	private static int validateSize(int width, int height, int bitsPerPixel) {
+	private static final int MIN_WORDS_PER_BAND = 1024;
+
+	static int validateSize(int width, int height, int bitsPerPixel) {
 		if (width < 0 || width > MAX_SIZE || height < 0 || height > MAX_SIZE) {
 			throw new IllegalArgumentException("Invalid size: (" + width + ", " + height + ")");
 		}
@@ -39,10 +56,16 @@ public class Kim2Compressor {
 	 */
 	public static int predictIntSize(int width, int height, int bitsPerPixel) throws IllegalArgumentException {
 		validateSize(width, height, bitsPerPixel);
-		int dataBits = width * height * bitsPerPixel;
-		int dataInts = dataBits / 32;
-		if (dataBits % 32 != 0) dataInts += 1;
-		return 2 + dataInts;
+		return 2 + (int) predictDataInts(width, height, bitsPerPixel);
+	}
+
+	/**
+	 * Computes the number of ints needed to store the pixels (so without the 2 header ints) of a kim2 image. This
+	 * uses {@code long} arithmetic, since {@code width * height * bitsPerPixel} doesn't fit in an {@code int} for
+	 * large images.
+	 */
+	static long predictDataInts(int width, int height, int bitsPerPixel) {
+		return ((long) width * height * bitsPerPixel + 31) / 32;
 	}
 
 	/**
@@ -67,15 +90,79 @@ public class Kim2Compressor {
 	 * than {@link #MAX_SIZE}
 	 */
 	public static void compress(BufferedImage input, IntBuffer output, int bitsPerPixel) throws IllegalArgumentException {
-		IntBuffer inputBuffer = IntBuffer.allocate(4 * input.getWidth() * input.getHeight());
-		for (int y = 0; y < input.getHeight(); y++) {
-			for (int x = 0; x < input.getWidth(); x++) {
-				Color color = new Color(input.getRGB(x, y), true);
-				inputBuffer.put(rgba(color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha()));
+		validateSize(input.getWidth(), input.getHeight(), bitsPerPixel);
+		compress(IntBuffer.wrap(toPackedPixels(input)), input.getWidth(), input.getHeight(), output, bitsPerPixel);
+	}
+
+	/**
+	 * Converts the pixels of {@code image} to an array of colors packed using
+	 * {@link com.github.knokko.boiler.utilities.ColorPacker}, in row-major order. The rasters of <i>TYPE_INT_ARGB</i>,
+	 * <i>TYPE_4BYTE_ABGR</i>, and <i>TYPE_BYTE_GRAY</i> images are read directly, but only when their pixels are
+	 * stored contiguously (without row padding). Other images are read 1 row at a time, using
+	 * {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}.
+	 */
+	static int[] toPackedPixels(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] pixels = new int[width * height];
+		WritableRaster raster = image.getRaster();
+		DataBuffer dataBuffer = raster.getDataBuffer();
+		SampleModel sampleModel = raster.getSampleModel();
+		boolean isTight = raster.getParent() == null && dataBuffer.getNumBanks() == 1 && dataBuffer.getOffset() == 0;
+
+		if (isTight && image.getType() == BufferedImage.TYPE_INT_ARGB && hasStrides(sampleModel, 1, width)) {
+			int[] argb = ((DataBufferInt) dataBuffer).getData();
+			for (int index = 0; index < pixels.length; index++) pixels[index] = argbToRgba(argb[index]);
+			return pixels;
+		}
+
+		if (isTight && image.getType() == BufferedImage.TYPE_4BYTE_ABGR && hasStrides(sampleModel, 4, 4 * width)) {
+			byte[] abgr = ((DataBufferByte) dataBuffer).getData();
+			for (int index = 0; index < pixels.length; index++) {
+				int offset = 4 * index;
+				pixels[index] = rgba(abgr[offset + 3], abgr[offset + 2], abgr[offset + 1], abgr[offset]);
 			}
+			return pixels;
 		}
-		inputBuffer.flip();
-		compress(inputBuffer, input.getWidth(), input.getHeight(), output, bitsPerPixel);
+
+		if (isTight && image.getType() == BufferedImage.TYPE_BYTE_GRAY && hasStrides(sampleModel, 1, width)) {
+			// The gray color space is linear, so let the color model convert each of the 256 possible values once
+			int[] grayTable = new int[256];
+			byte[] grayElement = new byte[1];
+			for (int gray = 0; gray < 256; gray++) {
+				grayElement[0] = (byte) gray;
+				grayTable[gray] = argbToRgba(image.getColorModel().getRGB(grayElement));
+			}
+
+			byte[] grays = ((DataBufferByte) dataBuffer).getData();
+			for (int index = 0; index < pixels.length; index++) pixels[index] = grayTable[grays[index] & 0xFF];
+			return pixels;
+		}
+
+		for (int y = 0; y < height; y++) {
+			int rowOffset = y * width;
+			image.getRGB(0, y, width, 1, pixels, rowOffset, width);
+			for (int index = rowOffset; index < rowOffset + width; index++) pixels[index] = argbToRgba(pixels[index]);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Checks whether the pixels of {@code sampleModel} are {@code pixelStride} data elements apart, and its rows are
+	 * {@code scanlineStride} data elements apart
+	 */
+	private static boolean hasStrides(SampleModel sampleModel, int pixelStride, int scanlineStride) {
+		if (sampleModel instanceof SinglePixelPackedSampleModel packedModel) {
+			return pixelStride == 1 && packedModel.getScanlineStride() == scanlineStride;
+		}
+		if (sampleModel instanceof ComponentSampleModel componentModel) {
+			return componentModel.getPixelStride() == pixelStride && componentModel.getScanlineStride() == scanlineStride;
+		}
+		return false;
+	}
+
+	private static int argbToRgba(int argb) {
+		return (argb & 0xFF00FF00) | ((argb >> 16) & 0xFF) | ((argb & 0xFF) << 16);
 	}
 
 	private static int clamp(long component) {
@@ -99,36 +186,72 @@ public class Kim2Compressor {
 	public static void compress(
 			IntBuffer input, int width, int height,
 			IntBuffer output, int bitsPerPixel
+	) {
+		compress(input, width, height, output, bitsPerPixel, Kim2Vectorization.isEnabled());
+	}
+
+	/**
+	 * The same as {@link #compress(IntBuffer, int, int, IntBuffer, int)}, but the caller decides whether the vector
+	 * kernels should be used. {@code vectorize} must only be true when <i>Kim2Vectorization.isEnabled()</i> is true.
+	 * This is used by tests and benchmarks to compare the scalar code with the vector kernels.
+	 */
+	static void compress(
+			IntBuffer input, int width, int height,
+			IntBuffer output, int bitsPerPixel, boolean vectorize
 	) {
 		int storedBitsPerPixel = validateSize(width, height, bitsPerPixel);
 		int numSteps = (1 << bitsPerPixel) - 1;
 		output.put(width | (height << 15) | (storedBitsPerPixel << 30));
+		output.put(computeColor(input, width * height, vectorize));
 
-		long totalAlpha = 0;
-		long totalRed = 0;
-		long totalGreen = 0;
-		long totalBlue = 0;
+		if (vectorize && input.hasArray() && output.hasArray()) {
+			int numPixels = width * height;
+			int numWords = (int) predictDataInts(width, height, bitsPerPixel);
+			if (output.remaining() < numWords) throw new BufferOverflowException();
+			packWords(input, input.position(), numPixels, bitsPerPixel, output, output.position(), true);
+			input.position(input.position() + numPixels);
+			output.position(output.position() + numWords);
+			return;
+		}
 
-		int oldPosition = input.position();
+		int bitOffset = 0;
+		int nextValue = 0;
+		int stepSize = 255 / numSteps;
 		for (int counter = 0; counter < width * height; counter++) {
-			int raw = input.get();
-			long alpha = unsigned(alpha(raw));
-			long weight = alpha * alpha;
-			totalAlpha += weight;
-			totalRed += weight * unsigned(red(raw));
-			totalGreen += weight * unsigned(green(raw));
-			totalBlue += weight * unsigned(blue(raw));
-		}
-		input.position(oldPosition);
+			int rawColor = input.get();
+			int storedAlpha = (unsigned(alpha(rawColor)) + stepSize / 2) / stepSize;
+			nextValue |= storedAlpha << bitOffset;
+			bitOffset += bitsPerPixel;
 
-		int color = 0;
-		if (totalAlpha > 0) {
-			int red = clamp(totalRed / totalAlpha);
-			int green = clamp(totalGreen / totalAlpha);
-			int blue = clamp(totalBlue / totalAlpha);
-			color = rgb(red, green, blue);
+			if (bitOffset == 32) {
+				output.put(nextValue);
+				nextValue = 0;
+				bitOffset = 0;
+			}
 		}
-		output.put(color);
+
+		if (bitOffset != 0) output.put(nextValue);
+	}
+
+	/**
+	 * Compresses the image stored in {@code input}, and writes the compressed data directly to the (native) memory
+	 * at {@code address}, using {@link org.lwjgl.system.MemoryUtil}. This avoids the bounds checks of
+	 * {@link IntBuffer#put(int)}. The caller must ensure that at least
+	 * {@code predictByteSize(width, height, bitsPerPixel)} bytes can be written to {@code address}.
+	 * See {@link #compress(IntBuffer, int, int, IntBuffer, int)} for the other parameters.
+	 * @return The number of ints that were written, which is always {@code predictIntSize(width, height, bitsPerPixel)}
+	 * @throws IllegalArgumentException When {@code bitsPerPixel} is invalid, or when either width or height is larger
+	 * than {@link #MAX_SIZE}
+	 */
+	public static int compress(
+			IntBuffer input, int width, int height,
+			long address, int bitsPerPixel
+	) throws IllegalArgumentException {
+		int storedBitsPerPixel = validateSize(width, height, bitsPerPixel);
+		int numSteps = (1 << bitsPerPixel) - 1;
+		memPutInt(address, width | (height << 15) | (storedBitsPerPixel << 30));
+		memPutInt(address + 4, computeColor(input, width * height, Kim2Vectorization.isEnabled()));
+		long nextAddress = address + 8;
 
 		int bitOffset = 0;
 		int nextValue = 0;
@@ -140,12 +263,205 @@ public class Kim2Compressor {
 			bitOffset += bitsPerPixel;
 
 			if (bitOffset == 32) {
-				output.put(nextValue);
+				memPutInt(nextAddress, nextValue);
+				nextAddress += 4;
 				nextValue = 0;
 				bitOffset = 0;
 			}
 		}
 
-		if (bitOffset != 0) output.put(nextValue);
+		if (bitOffset != 0) {
+			memPutInt(nextAddress, nextValue);
+			nextAddress += 4;
+		}
+		return (int) ((nextAddress - address) / 4);
+	}
+
+	/**
+	 * Compresses the image stored in {@code input}, and writes the compressed data directly to the mapped memory of
+	 * {@code output}. The size of {@code output} must be at least {@code predictByteSize(width, height, bitsPerPixel)}.
+	 * See {@link #compress(IntBuffer, int, int, IntBuffer, int)} for the other parameters.
+	 * @return The number of ints that were written, which is always {@code predictIntSize(width, height, bitsPerPixel)}
+	 * @throws IllegalArgumentException When {@code bitsPerPixel} is invalid, when either width or height is larger
+	 * than {@link #MAX_SIZE}, or when {@code output} is too small
+	 */
+	public static int compress(
+			IntBuffer input, int width, int height,
+			MappedVkbBufferRange output, int bitsPerPixel
+	) throws IllegalArgumentException {
+		int byteSize = predictByteSize(width, height, bitsPerPixel);
+		var hostBuffer = output.byteBuffer();
+		if (byteSize > hostBuffer.remaining()) {
+			throw new IllegalArgumentException("Expected at least " + byteSize + " bytes, but got " + hostBuffer.remaining());
+		}
+		return compress(input, width, height, memAddress(hostBuffer), bitsPerPixel);
+	}
+
+	/**
+	 * Compresses the image stored in {@code input} using the threads of {@code pool}, and puts the compressed data in
+	 * {@code output}. The image is split into bands of whole 32-bit words of compressed data, which are analyzed and
+	 * compressed in parallel. The result is bit-identical to that of
+	 * {@link #compress(IntBuffer, int, int, IntBuffer, int)}, which is also the method that explains the parameters.
+	 * Like that method, this method will increase the positions of {@code input} and {@code output}.
+	 * @param pool The pool whose threads should be used to compress the image
+	 * @throws IllegalArgumentException When {@code bitsPerPixel} is invalid, when either width or height is larger
+	 * than {@link #MAX_SIZE}, or when {@code output} is too small
+	 */
+	public static void compress(
+			ForkJoinPool pool, IntBuffer input, int width, int height,
+			IntBuffer output, int bitsPerPixel
+	) throws IllegalArgumentException {
+		int storedBitsPerPixel = validateSize(width, height, bitsPerPixel);
+		int numPixels = width * height;
+		int pixelsPerWord = 32 / bitsPerPixel;
+		int numWords = (int) predictDataInts(width, height, bitsPerPixel);
+		int wordsPerBand = max(MIN_WORDS_PER_BAND, numWords / (4 * pool.getParallelism()) + 1);
+		int numBands = (numWords + wordsPerBand - 1) / wordsPerBand;
+
+		int inputPosition = input.position();
+		int outputPosition = output.position();
+		if (input.remaining() < numPixels) throw new BufferUnderflowException();
+		if (output.remaining() < numWords + 2) {
+			throw new IllegalArgumentException("Expected at least " + (numWords + 2) + " ints, but got " + output.remaining());
+		}
+
+		boolean vectorize = Kim2Vectorization.isEnabled();
+		long[] bandTotals = new long[4 * numBands];
+		pool.invoke(new BandAction(0, numBands, band -> {
+			int minPixel = band * wordsPerBand * pixelsPerWord;
+			int boundPixel = (int) min(numPixels, (long) (band + 1) * wordsPerBand * pixelsPerWord);
+			accumulateColor(input, inputPosition + minPixel, inputPosition + boundPixel, bandTotals, 4 * band, vectorize);
+		}));
+
+		long[] totals = new long[4];
+		for (int index = 0; index < bandTotals.length; index++) totals[index % 4] += bandTotals[index];
+		output.put(outputPosition, width | (height << 15) | (storedBitsPerPixel << 30));
+		output.put(outputPosition + 1, toColor(totals));
+
+		pool.invoke(new BandAction(0, numBands, band -> {
+			int minPixel = band * wordsPerBand * pixelsPerWord;
+			int boundPixel = (int) min(numPixels, (long) (band + 1) * wordsPerBand * pixelsPerWord);
+			packWords(
+					input, inputPosition + minPixel, boundPixel - minPixel, bitsPerPixel,
+					output, outputPosition + 2 + band * wordsPerBand, vectorize
+			);
+		}));
+
+		input.position(inputPosition + numPixels);
+		output.position(outputPosition + 2 + numWords);
+	}
+
+	private static class BandAction extends RecursiveAction {
+
+		private final int minBand, boundBand;
+		private final IntConsumer task;
+
+		BandAction(int minBand, int boundBand, IntConsumer task) {
+			this.minBand = minBand;
+			this.boundBand = boundBand;
+			this.task = task;
+		}
+
+		@Override
+		protected void compute() {
+			if (boundBand - minBand <= 1) {
+				for (int band = minBand; band < boundBand; band++) task.accept(band);
+			} else {
+				int middleBand = (minBand + boundBand) / 2;
+				invokeAll(new BandAction(minBand, middleBand, task), new BandAction(middleBand, boundBand, task));
+			}
+		}
+	}
+
+	/**
+	 * Quantizes the alpha of the {@code numPixels} pixels starting at (absolute) index {@code minPixel} of
+	 * {@code input}, and stores the packed alpha values in {@code output}, starting at (absolute) index
+	 * {@code firstWord}. The positions of the buffers are ignored, and {@code numPixels} must be a multiple of the
+	 * number of pixels per word, unless these are the last pixels of the image.
+	 */
+	static void packWords(
+			IntBuffer input, int minPixel, int numPixels, int bitsPerPixel,
+			IntBuffer output, int firstWord, boolean vectorize
+	) {
+		if (vectorize && input.hasArray() && output.hasArray()) {
+			Kim2VectorKernels.pack(
+					input.array(), input.arrayOffset() + minPixel, numPixels, bitsPerPixel,
+					output.array(), output.arrayOffset() + firstWord
+			);
+			return;
+		}
+
+		int pixelsPerWord = 32 / bitsPerPixel;
+		int stepSize = 255 / ((1 << bitsPerPixel) - 1);
+		int boundPixel = minPixel + numPixels;
+		for (int wordPixel = minPixel; wordPixel < boundPixel; wordPixel += pixelsPerWord) {
+			int boundWordPixel = min(boundPixel, wordPixel + pixelsPerWord);
+
+			int nextValue = 0;
+			int bitOffset = 0;
+			for (int pixel = wordPixel; pixel < boundWordPixel; pixel++) {
+				int storedAlpha = (unsigned(alpha(input.get(pixel))) + stepSize / 2) / stepSize;
+				nextValue |= storedAlpha << bitOffset;
+				bitOffset += bitsPerPixel;
+			}
+			output.put(firstWord, nextValue);
+			firstWord += 1;
+		}
+	}
+
+	/**
+	 * Adds the (squared alpha) weighted sums of the pixels between (absolute) index {@code minIndex} and
+	 * {@code boundIndex} of {@code input} to {@code totals[offset]} (alpha), {@code totals[offset + 1]} (red),
+	 * {@code totals[offset + 2]} (green), and {@code totals[offset + 3]} (blue). The vector kernels are only used when
+	 * {@code vectorize} is true.
+	 */
+	static void accumulateColor(
+			IntBuffer input, int minIndex, int boundIndex, long[] totals, int offset, boolean vectorize
+	) {
+		if (vectorize && input.hasArray()) {
+			Kim2VectorKernels.accumulateColor(
+					input.array(), input.arrayOffset() + minIndex, input.arrayOffset() + boundIndex, totals, offset
+			);
+			return;
+		}
+
+		long totalAlpha = 0;
+		long totalRed = 0;
+		long totalGreen = 0;
+		long totalBlue = 0;
+
+		for (int index = minIndex; index < boundIndex; index++) {
+			int raw = input.get(index);
+			long alpha = unsigned(alpha(raw));
+			long weight = alpha * alpha;
+			totalAlpha += weight;
+			totalRed += weight * unsigned(red(raw));
+			totalGreen += weight * unsigned(green(raw));
+			totalBlue += weight * unsigned(blue(raw));
+		}
+
+		totals[offset] += totalAlpha;
+		totals[offset + 1] += totalRed;
+		totals[offset + 2] += totalGreen;
+		totals[offset + 3] += totalBlue;
+	}
+
+	static int toColor(long[] totals) {
+		long totalAlpha = totals[0];
+		int color = 0;
+		if (totalAlpha > 0) {
+			int red = clamp(totals[1] / totalAlpha);
+			int green = clamp(totals[2] / totalAlpha);
+			int blue = clamp(totals[3] / totalAlpha);
+			color = rgb(red, green, blue);
+		}
+		return color;
+	}
+
+	private static int computeColor(IntBuffer input, int numPixels, boolean vectorize) {
+		if (input.remaining() < numPixels) throw new BufferUnderflowException();
+		long[] totals = new long[4];
+		accumulateColor(input, input.position(), input.position() + numPixels, totals, 0, vectorize);
+		return toColor(totals);
 	}
 }
@@ -1,7 +1,10 @@
 package com.github.knokko.compressor;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 
 import static com.github.knokko.boiler.utilities.ColorPacker.*;
@@ -42,28 +45,15 @@ public class Kim2Decompressor {
 	}
 
 	/**
-	 * Decompresses a kim2 image, and returns the recovered image as {@link BufferedImage}
+	 * Decompresses a kim2 image, and returns the recovered image as {@link BufferedImage} with type
+	 * <i>TYPE_INT_ARGB</i>. The pixels are written directly to the data buffer of the image.
 	 * @param compressed The compressed kim2 image data
 	 */
 	public static BufferedImage decompress(IntBuffer compressed) {
-		int width = getWidth(compressed.get(0));
-		int height = getHeight(compressed.get(0));
-		IntBuffer rawOutput = IntBuffer.allocate(width * height);
-		decompress(compressed, rawOutput);
-		rawOutput.flip();
-
-		BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width;x ++) {
-				int rawColor = rawOutput.get();
-				Color color = new Color(
-						unsigned(red(rawColor)), unsigned(green(rawColor)),
-						unsigned(blue(rawColor)), unsigned(alpha(rawColor))
-				);
-				output.setRGB(x, y, color.getRGB());
-			}
-		}
-
+		int header = compressed.get(compressed.position());
+		BufferedImage output = new BufferedImage(getWidth(header), getHeight(header), BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+		decompress(compressed, IntBuffer.wrap(pixels), PaletteFormat.ARGB, Kim2Vectorization.isEnabled());
 		return output;
 	}
 
@@ -75,28 +65,228 @@ public class Kim2Decompressor {
 	 * @param output The buffer to which the recovered image data should be written
 	 */
 	public static void decompress(IntBuffer compressed, IntBuffer output) {
+		decompress(compressed, output, Kim2Vectorization.isEnabled());
+	}
+
+	/**
+	 * The same as {@link #decompress(IntBuffer, IntBuffer)}, but the caller decides whether the vector kernels should
+	 * be used. {@code vectorize} must only be true when <i>Kim2Vectorization.isEnabled()</i> is true. This is used by
+	 * tests and benchmarks to compare the scalar code with the vector kernels.
+	 */
+	static void decompress(IntBuffer compressed, IntBuffer output, boolean vectorize) {
+		decompress(compressed, output, PaletteFormat.RGBA, vectorize);
+	}
+
+	/**
+	 * Decompresses a kim2 image, and stores the recovered image in {@code rgba8}, using 4 bytes per pixel, in RGBA
+	 * order, regardless of the byte order of {@code rgba8}. This is the layout of <i>VK_FORMAT_R8G8B8A8_UNORM</i>, so
+	 * the result can be copied straight to an image using <i>vkCmdCopyBufferToImage</i>. This method will write
+	 * {@code 4 * width * height} bytes, and increase the {@link ByteBuffer#position()} of {@code rgba8} accordingly.
+	 * @param compressed The compressed kim2 image data
+	 * @param rgba8 The buffer to which the recovered image data should be written
+	 * @param premultiplyAlpha Whether the red, green, and blue components should be multiplied by the alpha component
+	 */
+	public static void decompress(IntBuffer compressed, ByteBuffer rgba8, boolean premultiplyAlpha) {
+		int header = compressed.get(compressed.position());
+		long numBytes = 4L * getWidth(header) * getHeight(header);
+		if (numBytes > rgba8.remaining()) {
+			throw new IllegalArgumentException("Expected at least " + numBytes + " bytes, but got " + rgba8.remaining());
+		}
+
+		PaletteFormat format;
+		if (rgba8.order() == ByteOrder.LITTLE_ENDIAN) {
+			format = premultiplyAlpha ? PaletteFormat.PREMULTIPLIED_RGBA : PaletteFormat.RGBA;
+		} else format = premultiplyAlpha ? PaletteFormat.PREMULTIPLIED_ABGR : PaletteFormat.ABGR;
+
+		decompress(compressed, rgba8.asIntBuffer(), format, Kim2Vectorization.isEnabled());
+		rgba8.position(rgba8.position() + (int) numBytes);
+	}
+
+	/**
+	 * Decompresses {@code rowCount} rows of a kim2 image, starting at row {@code firstRow}, and stores the recovered
+	 * pixels in {@code output}: it will write {@code width * rowCount} ints to {@code output}, packed using
+	 * {@link com.github.knokko.boiler.utilities.ColorPacker}. Since each pixel of a kim2 image has the same number of
+	 * bits, only the compressed data of these rows will be read. The position of {@code compressed} is <b>not</b>
+	 * modified.
+	 * @param compressed The compressed kim2 image data, starting at its position
+	 * @param firstRow The index of the first row to decompress, where row 0 is the top row
+	 * @param rowCount The number of rows to decompress
+	 * @param output The buffer to which the recovered pixels should be written
+	 * @throws IllegalArgumentException When the rows are out of bounds
+	 */
+	public static void decodeRows(
+			IntBuffer compressed, int firstRow, int rowCount, IntBuffer output
+	) throws IllegalArgumentException {
+		int header = compressed.get(compressed.position());
+		decodeRegion(compressed, 0, firstRow, getWidth(header), rowCount, output);
+	}
+
+	/**
+	 * Decompresses the rectangle of a kim2 image whose top-left pixel is {@code (minX, minY)}, and stores the recovered
+	 * pixels in {@code output}: it will write {@code regionWidth * regionHeight} ints to {@code output}, row by row,
+	 * packed using {@link com.github.knokko.boiler.utilities.ColorPacker}. Since each pixel of a kim2 image has the
+	 * same number of bits, only the compressed data of these pixels will be read. The position of {@code compressed}
+	 * is <b>not</b> modified.
+	 * @param compressed The compressed kim2 image data, starting at its position
+	 * @throws IllegalArgumentException When (part of) the rectangle is outside the image
+	 */
+	public static void decodeRegion(
+			IntBuffer compressed, int minX, int minY, int regionWidth, int regionHeight, IntBuffer output
+	) throws IllegalArgumentException {
+		int startPosition = compressed.position();
+		int header = compressed.get(startPosition);
+		int width = getWidth(header);
+		int height = getHeight(header);
+		if (minX < 0 || minY < 0 || regionWidth < 0 || regionHeight < 0 ||
+				minX + regionWidth > width || minY + regionHeight > height) {
+			throw new IllegalArgumentException("Region (" + minX + ", " + minY + ", " + regionWidth + ", " +
+					regionHeight + ") is not inside the image of size (" + width + ", " + height + ")");
+		}
+
+		int bitsPerPixel = getBitsPerPixel(header);
+		int[] palette = createPalette(compressed.get(startPosition + 1), bitsPerPixel, PaletteFormat.RGBA);
+		int pixelsPerWord = 32 / bitsPerPixel;
+		int bitMask = (1 << bitsPerPixel) - 1;
+		for (int y = minY; y < minY + regionHeight; y++) {
+			int rowPixel = y * width;
+			for (int x = minX; x < minX + regionWidth; x++) {
+				int pixel = rowPixel + x;
+				int value = compressed.get(startPosition + 2 + pixel / pixelsPerWord);
+				output.put(palette[(value >> ((pixel % pixelsPerWord) * bitsPerPixel)) & bitMask]);
+			}
+		}
+	}
+
+	private enum PaletteFormat {
+		RGBA,
+		ABGR,
+		PREMULTIPLIED_RGBA,
+		PREMULTIPLIED_ABGR,
+		ARGB
+	}
+
+	private static int premultiply(int component, int alpha) {
+		return (component * alpha + 127) / 255;
+	}
+
+	/**
+	 * Since every pixel of a kim2 image has the same color, there are only {@code 2^bitsPerPixel} distinct pixel
+	 * values, which are computed up front.
+	 */
+	private static int[] createPalette(int color, int bitsPerPixel, PaletteFormat format) {
+		int[] palette = new int[1 << bitsPerPixel];
+		int stepSize = 255 / (palette.length - 1);
+		int red = unsigned(red(color));
+		int green = unsigned(green(color));
+		int blue = unsigned(blue(color));
+		for (int storedAlpha = 0; storedAlpha < palette.length; storedAlpha++) {
+			int alpha = stepSize * storedAlpha;
+			palette[storedAlpha] = switch (format) {
+				case RGBA -> rgba(red, green, blue, alpha);
+				case ABGR -> Integer.reverseBytes(rgba(red, green, blue, alpha));
+				case PREMULTIPLIED_RGBA -> rgba(
+						premultiply(red, alpha), premultiply(green, alpha), premultiply(blue, alpha), alpha
+				);
+				case PREMULTIPLIED_ABGR -> Integer.reverseBytes(rgba(
+						premultiply(red, alpha), premultiply(green, alpha), premultiply(blue, alpha), alpha
+				));
+				case ARGB -> (alpha << 24) | (red << 16) | (green << 8) | blue;
+			};
+		}
+		return palette;
+	}
+
+	private static void decompress(IntBuffer compressed, IntBuffer output, PaletteFormat format, boolean vectorize) {
 		int header = compressed.get();
 		int width = getWidth(header);
 		int height = getHeight(header);
 		int bitsPerPixel = getBitsPerPixel(header);
+		int[] palette = createPalette(compressed.get(), bitsPerPixel, format);
 
-		int color = compressed.get() & rgba(255, 255, 255, 0);
+		boolean isPremultiplied = format == PaletteFormat.PREMULTIPLIED_RGBA || format == PaletteFormat.PREMULTIPLIED_ABGR;
+		if (vectorize && output.hasArray() && !isPremultiplied) {
+			int numPixels = width * height;
+			if (output.remaining() < numPixels) throw new BufferOverflowException();
+			int alphaShift = format == PaletteFormat.ABGR ? 0 : 24;
+			Kim2VectorKernels.unpack(
+					compressed, numPixels, bitsPerPixel, palette[0], alphaShift,
+					output.array(), output.arrayOffset() + output.position()
+			);
+			output.position(output.position() + numPixels);
+			return;
+		}
+
+		int counter = 0;
+		if (bitsPerPixel < 8 && width * height >= 256 * (8 / bitsPerPixel)) {
+			counter = decompressWithTable(compressed, output, width * height, bitsPerPixel, palette);
+		}
 
 		int bitOffset = 32;
 		int nextValue = 0;
 		int bitMask = (1 << bitsPerPixel) - 1;
-		int stepSize = 255 / bitMask;
-		for (int counter = 0; counter < width * height; counter++) {
+		for (; counter < width * height; counter++) {
 			if (bitOffset == 32) {
 				bitOffset = 0;
 				nextValue = compressed.get();
 			}
 
-			int storedAlpha = (nextValue >> bitOffset) & bitMask;
-			int actualAlpha = stepSize * storedAlpha;
-			output.put(color | (actualAlpha << 24));
-
+			output.put(palette[(nextValue >> bitOffset) & bitMask]);
 			bitOffset += bitsPerPixel;
 		}
 	}
+
+	/**
+	 * Creates a table that maps each possible byte of compressed data to the {@code 8 / bitsPerPixel} pixels that it
+	 * encodes: the pixels of byte {@code b} are stored at {@code table[b * pixelsPerByte]} until
+	 * {@code table[(b + 1) * pixelsPerByte]}
+	 */
+	private static int[] createByteTable(int[] palette, int bitsPerPixel) {
+		int pixelsPerByte = 8 / bitsPerPixel;
+		int bitMask = (1 << bitsPerPixel) - 1;
+		int[] table = new int[256 * pixelsPerByte];
+		for (int value = 0; value < 256; value++) {
+			for (int pixel = 0; pixel < pixelsPerByte; pixel++) {
+				table[value * pixelsPerByte + pixel] = palette[(value >> (pixel * bitsPerPixel)) & bitMask];
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Decodes all <b>whole</b> words of compressed data using a table that decodes 1 byte at a time
+	 * @return The number of pixels that were decoded
+	 */
+	private static int decompressWithTable(
+			IntBuffer compressed, IntBuffer output, int numPixels, int bitsPerPixel, int[] palette
+	) {
+		int pixelsPerByte = 8 / bitsPerPixel;
+		int numWords = numPixels / (4 * pixelsPerByte);
+		int[] table = createByteTable(palette, bitsPerPixel);
+
+		if (output.hasArray()) {
+			if (output.remaining() < numPixels) throw new BufferOverflowException();
+			int[] outputArray = output.array();
+			int outputIndex = output.arrayOffset() + output.position();
+			for (int word = 0; word < numWords; word++) {
+				int value = compressed.get();
+				for (int shift = 0; shift < 32; shift += 8) {
+					int tableIndex = ((value >>> shift) & 255) * pixelsPerByte;
+					for (int pixel = 0; pixel < pixelsPerByte; pixel++) {
+						outputArray[outputIndex + pixel] = table[tableIndex + pixel];
+					}
+					outputIndex += pixelsPerByte;
+				}
+			}
+			output.position(outputIndex - output.arrayOffset());
+		} else {
+			for (int word = 0; word < numWords; word++) {
+				int value = compressed.get();
+				for (int shift = 0; shift < 32; shift += 8) {
+					output.put(table, ((value >>> shift) & 255) * pixelsPerByte, pixelsPerByte);
+				}
+			}
+		}
+
+		return 4 * pixelsPerByte * numWords;
+	}
 }
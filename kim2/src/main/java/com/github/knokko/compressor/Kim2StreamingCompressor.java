@@ -0,0 +1,182 @@
+package com.github.knokko.compressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static com.github.knokko.boiler.utilities.ColorPacker.alpha;
+import static com.github.knokko.boiler.utilities.ColorPacker.unsigned;
+
+/**
+ * This class can compress images to the kim2 format without ever holding the whole image in memory: the pixels are
+ * pushed 1 row at a time, and the compressed data is written to a {@link WritableByteChannel}. Its peak memory usage
+ * is only a few rows, which makes it suitable for huge images (up to {@link Kim2Compressor#MAX_SIZE} by
+ * {@link Kim2Compressor#MAX_SIZE} pixels).
+ * <p>
+ * The color of a kim2 image is stored in its header, before the pixels, but it depends on all pixels. Therefore,
+ * you need to either pass a precomputed color to the constructor, or use the static
+ * {@link #compress(int, int, int, RowSource, WritableByteChannel)} method, which reads each row twice: once to compute
+ * the color, and once to compress it.
+ * </p>
+ * The compressed data is written in little-endian byte order, so the written bytes are the same as those of the
+ * {@link IntBuffer} that <i>Kim2Compressor</i> would produce, when it would be stored in a (little-endian) Vulkan
+ * buffer.
+ */
+public class Kim2StreamingCompressor {
+
+	/**
+	 * A source of pixel rows, for instance a memory-mapped file with raw pixel data
+	 */
+	@FunctionalInterface
+	public interface RowSource {
+
+		/**
+		 * Puts the {@code width} pixels of row {@code y} in {@code destination}, packed using
+		 * {@link com.github.knokko.boiler.utilities.ColorPacker}. The rows are requested in ascending order, but each
+		 * row may be requested more than once.
+		 * @param y The index of the row, from 0 (top) to height - 1 (bottom)
+		 * @param destination The buffer to which the pixels must be written, starting at position 0. Its capacity is
+		 *                    exactly {@code width} ints.
+		 */
+		void readRow(int y, IntBuffer destination) throws IOException;
+	}
+
+	private static final int STAGING_SIZE = 16 * 1024;
+
+	/**
+	 * Computes the color that <i>Kim2Compressor</i> would store for the image provided by {@code source}, by reading
+	 * all its rows once. The result can be passed to the constructor of <i>Kim2StreamingCompressor</i>.
+	 * @param width The width of the image, in pixels
+	 * @param height The height of the image, in pixels
+	 * @param source The source that will provide the rows of the image
+	 * @return The color of the image, packed using {@link com.github.knokko.boiler.utilities.ColorPacker}
+	 */
+	public static int computeColor(int width, int height, RowSource source) throws IOException {
+		IntBuffer row = IntBuffer.allocate(width);
+		long[] totals = new long[4];
+		for (int y = 0; y < height; y++) {
+			row.clear();
+			source.readRow(y, row);
+			Kim2Compressor.accumulateColor(row, 0, width, totals, 0, Kim2Vectorization.isEnabled());
+		}
+		return Kim2Compressor.toColor(totals);
+	}
+
+	/**
+	 * Compresses the image provided by {@code source}, and writes the compressed data to {@code destination}. This
+	 * method will read all rows twice: once to compute the color, and once to compress them. The result is identical
+	 * to that of {@link Kim2Compressor#compress(IntBuffer, int, int, IntBuffer, int)}.
+	 * @param width The width of the image, in pixels
+	 * @param height The height of the image, in pixels
+	 * @param bitsPerPixel The number of bits that should be used to store 1 pixel, must be either 1, 2, 4, or 8
+	 * @param source The source that will provide the rows of the image
+	 * @param destination The channel to which the compressed data should be written.
+	 *                    It will <b>not</b> be closed by this method.
+	 * @throws IllegalArgumentException When {@code bitsPerPixel} is invalid, or when either width or height is larger
+	 * than {@link Kim2Compressor#MAX_SIZE}
+	 */
+	public static void compress(
+			int width, int height, int bitsPerPixel, RowSource source, WritableByteChannel destination
+	) throws IOException, IllegalArgumentException {
+		Kim2Compressor.validateSize(width, height, bitsPerPixel);
+		int color = computeColor(width, height, source);
+
+		var compressor = new Kim2StreamingCompressor(width, height, bitsPerPixel, color, destination);
+		IntBuffer row = IntBuffer.allocate(width);
+		for (int y = 0; y < height; y++) {
+			row.clear();
+			source.readRow(y, row);
+			row.clear();
+			compressor.pushRow(row);
+		}
+		compressor.finish();
+	}
+
+	private final int width, height, bitsPerPixel, stepSize;
+	private final WritableByteChannel destination;
+	private final ByteBuffer staging;
+
+	private int numPushedRows;
+	private int nextValue, bitOffset;
+
+	/**
+	 * Constructs a new <i>Kim2StreamingCompressor</i>, and immediately writes the header of the compressed image to
+	 * {@code destination}. You need to call {@link #pushRow(IntBuffer)} {@code height} times, followed by
+	 * {@link #finish()}.
+	 * @param width The width of the image, in pixels
+	 * @param height The height of the image, in pixels
+	 * @param bitsPerPixel The number of bits that should be used to store 1 pixel, must be either 1, 2, 4, or 8
+	 * @param color The color of the image, for instance computed by
+	 * {@link #computeColor(int, int, RowSource)}. Its alpha component is ignored.
+	 * @param destination The channel to which the compressed data should be written.
+	 *                    It will <b>not</b> be closed by this compressor.
+	 * @throws IllegalArgumentException When {@code bitsPerPixel} is invalid, or when either width or height is larger
+	 * than {@link Kim2Compressor#MAX_SIZE}
+	 */
+	public Kim2StreamingCompressor(
+			int width, int height, int bitsPerPixel, int color, WritableByteChannel destination
+	) throws IOException, IllegalArgumentException {
+		int storedBitsPerPixel = Kim2Compressor.validateSize(width, height, bitsPerPixel);
+		this.width = width;
+		this.height = height;
+		this.bitsPerPixel = bitsPerPixel;
+		this.stepSize = 255 / ((1 << bitsPerPixel) - 1);
+		this.destination = destination;
+		this.staging = ByteBuffer.allocateDirect(STAGING_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		staging.putInt(width | (height << 15) | (storedBitsPerPixel << 30));
+		staging.putInt(color);
+		flush();
+	}
+
+	/**
+	 * Compresses the next row of the image. This method reads {@code width} pixels from {@code row} (packed using
+	 * {@link com.github.knokko.boiler.utilities.ColorPacker}), and increases its position accordingly.
+	 * @throws IllegalStateException When all {@code height} rows have already been pushed
+	 */
+	public void pushRow(IntBuffer row) throws IOException, IllegalStateException {
+		if (numPushedRows >= height) throw new IllegalStateException("All " + height + " rows have already been pushed");
+		if (row.remaining() < width) {
+			throw new IllegalArgumentException("Expected at least " + width + " pixels, but got " + row.remaining());
+		}
+
+		for (int x = 0; x < width; x++) {
+			int storedAlpha = (unsigned(alpha(row.get())) + stepSize / 2) / stepSize;
+			nextValue |= storedAlpha << bitOffset;
+			bitOffset += bitsPerPixel;
+
+			if (bitOffset == 32) {
+				staging.putInt(nextValue);
+				if (!staging.hasRemaining()) flush();
+				nextValue = 0;
+				bitOffset = 0;
+			}
+		}
+		numPushedRows += 1;
+	}
+
+	/**
+	 * Writes the last (partial) word of compressed data to the destination channel. This must be called after all
+	 * rows have been pushed.
+	 * @throws IllegalStateException When not all rows have been pushed
+	 */
+	public void finish() throws IOException, IllegalStateException {
+		if (numPushedRows != height) {
+			throw new IllegalStateException("Only " + numPushedRows + " of the " + height + " rows have been pushed");
+		}
+		if (bitOffset != 0) {
+			staging.putInt(nextValue);
+			nextValue = 0;
+			bitOffset = 0;
+		}
+		flush();
+	}
+
+	private void flush() throws IOException {
+		staging.flip();
+		while (staging.hasRemaining()) destination.write(staging);
+		staging.clear();
+	}
+}
@@ -0,0 +1,96 @@
+package com.github.knokko.compressor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import static com.github.knokko.boiler.utilities.ColorPacker.*;
+
+/**
+ * This class can decompress kim2 images from a {@link ReadableByteChannel}, 1 row at a time, without ever holding the
+ * whole (compressed or decompressed) image in memory. The compressed data must be stored in little-endian byte
+ * order, which is what <i>Kim2StreamingCompressor</i> writes.
+ */
+public class Kim2StreamingDecompressor {
+
+	/**
+	 * Receives the decompressed rows of an image
+	 */
+	@FunctionalInterface
+	public interface RowConsumer {
+
+		/**
+		 * Consumes row {@code y} of the image. The rows are passed in ascending order.
+		 * @param y The index of the row, from 0 (top) to height - 1 (bottom)
+		 * @param row The {@code width} pixels of the row, packed using
+		 * {@link com.github.knokko.boiler.utilities.ColorPacker}. This buffer will be reused for the next row, so it
+		 *            is only valid during this method call.
+		 */
+		void consumeRow(int y, IntBuffer row) throws IOException;
+	}
+
+	private static final int STAGING_SIZE = 16 * 1024;
+
+	/**
+	 * Reads 1 compressed kim2 image from {@code source}, and passes its rows to {@code consumer}. This method will
+	 * read exactly the compressed data of the image, so the channel can contain more data after the image.
+	 * @param source The channel from which the compressed data should be read. It will <b>not</b> be closed.
+	 * @param consumer The consumer that will receive each row
+	 * @return The header (first int) of the compressed image, from which you can extract the width and height using
+	 * {@link Kim2Decompressor#getWidth(int)} and {@link Kim2Decompressor#getHeight(int)}
+	 * @throws EOFException When the channel ends before the whole image was read
+	 */
+	public static int decompress(ReadableByteChannel source, RowConsumer consumer) throws IOException {
+		ByteBuffer headerBuffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(source, headerBuffer);
+		int header = headerBuffer.getInt(0);
+		int width = Kim2Decompressor.getWidth(header);
+		int height = Kim2Decompressor.getHeight(header);
+		int bitsPerPixel = Kim2Decompressor.getBitsPerPixel(header);
+		int color = headerBuffer.getInt(4) & rgba(255, 255, 255, 0);
+
+		int bitMask = (1 << bitsPerPixel) - 1;
+		int stepSize = 255 / bitMask;
+		IntBuffer row = IntBuffer.allocate(width);
+
+		// Only read the bytes of this image, in case the channel contains more data
+		long remainingBytes = ((long) width * height * bitsPerPixel + 31) / 32 * 4;
+		ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		staging.limit(0);
+
+		int bitOffset = 32;
+		int nextValue = 0;
+		for (int y = 0; y < height; y++) {
+			row.clear();
+			for (int x = 0; x < width; x++) {
+				if (bitOffset == 32) {
+					if (!staging.hasRemaining()) {
+						staging.clear();
+						staging.limit((int) Math.min(STAGING_SIZE, remainingBytes));
+						readFully(source, staging);
+						remainingBytes -= staging.limit();
+						staging.flip();
+					}
+					bitOffset = 0;
+					nextValue = staging.getInt();
+				}
+
+				int storedAlpha = (nextValue >> bitOffset) & bitMask;
+				row.put(color | ((stepSize * storedAlpha) << 24));
+				bitOffset += bitsPerPixel;
+			}
+			row.flip();
+			consumer.consumeRow(y, row);
+		}
+		return header;
+	}
+
+	private static void readFully(ReadableByteChannel source, ByteBuffer destination) throws IOException {
+		while (destination.hasRemaining()) {
+			if (source.read(destination) == -1) throw new EOFException("The compressed kim2 image ended too early");
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.github.knokko.compressor;
+
+import java.nio.IntBuffer;
+
+/**
+ * The placeholder for the vector kernels, which is used when the real <i>Kim2VectorKernels</i> (which needs the
+ * incubating Vector API) is not on the class path. The real class is compiled in the <i>vector</i> source set, and is
+ * stored in <i>META-INF/versions/17</i> of the multi-release jar. Since {@link #isUseful()} returns false, the other
+ * methods are normally not called, but they use the scalar code, so they produce the same results as the real
+ * kernels.
+ */
+final class Kim2VectorKernels {
+
+	static boolean isUseful() {
+		return false;
+	}
+
+	static void accumulateColor(int[] pixels, int minIndex, int boundIndex, long[] totals, int offset) {
+		Kim2Compressor.accumulateColor(IntBuffer.wrap(pixels), minIndex, boundIndex, totals, offset, false);
+	}
+
+	static void pack(int[] pixels, int firstPixel, int numPixels, int bitsPerPixel, int[] words, int firstWord) {
+		Kim2Compressor.packWords(
+				IntBuffer.wrap(pixels), firstPixel, numPixels, bitsPerPixel,
+				IntBuffer.wrap(words), firstWord, false
+		);
+	}
+
+	static void unpack(
+			IntBuffer compressed, int numPixels, int bitsPerPixel,
+			int color, int alphaShift, int[] output, int outputIndex
+	) {
+		int pixelsPerWord = 32 / bitsPerPixel;
+		int bitMask = (1 << bitsPerPixel) - 1;
+		int stepSize = 255 / bitMask;
+		for (int pixel = 0; pixel < numPixels; pixel += pixelsPerWord) {
+			int value = compressed.get();
+			for (int wordPixel = 0; wordPixel < Math.min(pixelsPerWord, numPixels - pixel); wordPixel++) {
+				int storedAlpha = (value >> (wordPixel * bitsPerPixel)) & bitMask;
+				output[outputIndex + pixel + wordPixel] = color | ((stepSize * storedAlpha) << alphaShift);
+			}
+		}
+	}
+}
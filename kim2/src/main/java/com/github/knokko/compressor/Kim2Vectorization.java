@@ -0,0 +1,32 @@
+package com.github.knokko.compressor;
+
+/**
+ * Decides whether the kim2 compressor and decompressor should use <i>Kim2VectorKernels</i>, which need the
+ * incubating <i>jdk.incubator.vector</i> module. That module is only available when the JVM is started with
+ * <i>--add-modules jdk.incubator.vector</i>, and the real kernels are only in the versioned part of the multi-release
+ * jar, so the scalar code is used otherwise. The vector kernels can also be disabled by setting the system property
+ * <i>kim2.vectorize</i> to <i>false</i>.
+ */
+final class Kim2Vectorization {
+
+	private static final boolean ENABLED = isAvailable();
+
+	/**
+	 * @return Whether the vector kernels should be used. Tests and benchmarks can compare both paths by passing
+	 * {@code vectorize} explicitly to the package-private overloads of <i>Kim2Compressor.compress</i> and
+	 * <i>Kim2Decompressor.decompress</i>.
+	 */
+	static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	private static boolean isAvailable() {
+		if ("false".equals(System.getProperty("kim2.vectorize"))) return false;
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return false;
+		try {
+			return Kim2VectorKernels.isUseful();
+		} catch (LinkageError unsupported) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.github.knokko.compressor;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static com.github.knokko.boiler.utilities.ColorPacker.rgba;
+
+/**
+ * Compares the throughput of the scalar kim2 code with that of the vector kernels, for each number of bits per pixel.
+ * Run this with <i>--add-modules jdk.incubator.vector</i>, otherwise only the scalar code can be measured.
+ */
+public class Kim2Benchmark {
+
+	private static final int WIDTH = 4096;
+	private static final int HEIGHT = 4096;
+	private static final int NUM_ITERATIONS = 20;
+
+	public static void main(String[] args) {
+		Random rng = new Random(1234);
+		IntBuffer input = IntBuffer.allocate(WIDTH * HEIGHT);
+		for (int counter = 0; counter < input.capacity(); counter++) {
+			input.put(rgba(30, 100 + rng.nextInt(20), 200, rng.nextInt(256)));
+		}
+		input.flip();
+
+		boolean hasVectorKernels = Kim2Vectorization.isEnabled();
+		if (!hasVectorKernels) System.out.println("The vector kernels are not available, so only scalar code will be used");
+		for (int bitsPerPixel : new int[] { 1, 2, 4, 8 }) {
+			IntBuffer compressed = IntBuffer.allocate(Kim2Compressor.predictIntSize(WIDTH, HEIGHT, bitsPerPixel));
+			IntBuffer recovered = IntBuffer.allocate(WIDTH * HEIGHT);
+			for (boolean vectorize : hasVectorKernels ? new boolean[] { false, true } : new boolean[] { false }) {
+				// The first iterations are just warmup
+				long compressTime = 0;
+				long decompressTime = 0;
+				for (int iteration = 0; iteration < 2 * NUM_ITERATIONS; iteration++) {
+					input.position(0);
+					compressed.clear();
+					long startTime = System.nanoTime();
+					Kim2Compressor.compress(input, WIDTH, HEIGHT, compressed, bitsPerPixel, vectorize);
+					long middleTime = System.nanoTime();
+					compressed.flip();
+					recovered.clear();
+					Kim2Decompressor.decompress(compressed, recovered, vectorize);
+					long endTime = System.nanoTime();
+
+					if (iteration >= NUM_ITERATIONS) {
+						compressTime += middleTime - startTime;
+						decompressTime += endTime - middleTime;
+					}
+				}
+
+				long numPixels = (long) NUM_ITERATIONS * WIDTH * HEIGHT;
+				System.out.printf(
+						"%d bits per pixel, %s: compressed %d pixels/ms and decompressed %d pixels/ms%n",
+						bitsPerPixel, vectorize ? "vector" : "scalar",
+						1_000_000L * numPixels / compressTime, 1_000_000L * numPixels / decompressTime
+				);
+			}
+		}
+	}
+}
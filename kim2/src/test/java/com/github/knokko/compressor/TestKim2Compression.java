@@ -9,18 +9,30 @@ import org.junit.jupiter.api.Test;
 import org.lwjgl.vulkan.*;
 
 import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import java.awt.Color;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.github.knokko.boiler.utilities.ColorPacker.*;
 import static com.github.knokko.compressor.Kim2Compressor.*;
 import static com.github.knokko.compressor.Kim2Decompressor.*;
 import static com.github.knokko.compressor.TestHelper.assertImageEquals;
 import static java.util.Objects.requireNonNull;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.system.MemoryUtil.*;
 import static org.lwjgl.vulkan.VK10.*;
 
 public class TestKim2Compression {
@@ -36,6 +48,18 @@ public class TestKim2Compression {
 		assertEquals(127, predictIntSize(100, 10, 4));
 	}
 
+	@Test
+	public void testPredictSizeOfHugeImages() {
+		// width * height * bitsPerPixel doesn't fit in an int for these sizes
+		long numPixels = (long) MAX_SIZE * MAX_SIZE;
+		assertEquals((numPixels + 3) / 4, predictDataInts(MAX_SIZE, MAX_SIZE, 8));
+		assertEquals(2 + (numPixels + 3) / 4, predictIntSize(MAX_SIZE, MAX_SIZE, 8));
+		assertEquals(8 + 4 * ((numPixels + 3) / 4), predictByteSize(MAX_SIZE, MAX_SIZE, 8));
+		assertEquals((numPixels + 7) / 8, predictDataInts(MAX_SIZE, MAX_SIZE, 4));
+		assertEquals(2 + (numPixels + 7) / 8, predictIntSize(MAX_SIZE, MAX_SIZE, 4));
+		assertEquals(2 + (numPixels + 15) / 16, predictIntSize(MAX_SIZE, MAX_SIZE, 2));
+	}
+
 	@Test
 	public void testExact8BitReconstruction() {
 		IntBuffer input = IntBuffer.allocate(256);
@@ -152,6 +176,279 @@ public class TestKim2Compression {
 		}
 	}
 
+	@Test
+	public void testCompressToAddress() {
+		IntBuffer input = IntBuffer.allocate(37 * 13);
+		for (int counter = 0; counter < input.capacity(); counter++) {
+			input.put(rgba(counter % 50, 100, 150, (counter * 7) % 256));
+		}
+		input.flip();
+
+		for (int bitsPerPixel : new int[] { 1, 2, 4, 8 }) {
+			IntBuffer expected = IntBuffer.allocate(predictIntSize(37, 13, bitsPerPixel));
+			compress(input, 37, 13, expected, bitsPerPixel);
+			expected.flip();
+			input.position(0);
+
+			IntBuffer actual = memCallocInt(predictIntSize(37, 13, bitsPerPixel));
+			assertEquals(actual.capacity(), compress(input, 37, 13, memAddress(actual), bitsPerPixel));
+			assertEquals(expected, actual);
+			assertEquals(input.capacity(), input.position());
+			input.position(0);
+			memFree(actual);
+		}
+	}
+
+	@Test
+	public void testDecompressToRgba8() {
+		IntBuffer input = IntBuffer.allocate(4);
+		input.put(rgba(200, 100, 50, 0));
+		input.put(rgba(200, 100, 50, 85));
+		input.put(rgba(200, 100, 50, 170));
+		input.put(rgba(200, 100, 50, 255));
+		input.flip();
+
+		IntBuffer compressed = IntBuffer.allocate(predictIntSize(2, 2, 2));
+		compress(input, 2, 2, compressed, 2);
+		compressed.flip();
+
+		for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+			ByteBuffer straight = ByteBuffer.allocate(16).order(order);
+			decompress(compressed.duplicate(), straight, false);
+			assertEquals(16, straight.position());
+			assertArrayEquals(new byte[] {
+					(byte) 200, 100, 50, 0, (byte) 200, 100, 50, 85,
+					(byte) 200, 100, 50, (byte) 170, (byte) 200, 100, 50, (byte) 255
+			}, straight.array());
+
+			ByteBuffer premultiplied = ByteBuffer.allocate(16).order(order);
+			decompress(compressed.duplicate(), premultiplied, true);
+			assertArrayEquals(new byte[] {
+					0, 0, 0, 0, 67, 33, 17, 85,
+					(byte) 133, 67, 33, (byte) 170, (byte) 200, 100, 50, (byte) 255
+			}, premultiplied.array());
+		}
+
+		// 4 * MAX_SIZE * MAX_SIZE bytes doesn't fit in an int
+		IntBuffer huge = IntBuffer.wrap(new int[] { MAX_SIZE | (MAX_SIZE << 15), 0 });
+		assertThrows(IllegalArgumentException.class, () -> decompress(huge, ByteBuffer.allocate(16), false));
+	}
+
+	@Test
+	public void testParallelCompression() {
+		Random rng = new Random(3);
+		ForkJoinPool pool = new ForkJoinPool(5);
+		int[][] sizes = { { 0, 5 }, { 1, 1 }, { 3, 7 }, { 1000, 1000 }, { 4001, 517 }, { MAX_SIZE, 3 } };
+		for (int[] size : sizes) {
+			int width = size[0];
+			int height = size[1];
+			IntBuffer input = IntBuffer.allocate(width * height);
+			for (int counter = 0; counter < input.capacity(); counter++) {
+				input.put(rgba(rng.nextInt(256), rng.nextInt(256), 9, rng.nextInt(256)));
+			}
+
+			for (int bitsPerPixel : new int[] { 1, 2, 4, 8 }) {
+				input.flip();
+				IntBuffer expected = IntBuffer.allocate(predictIntSize(width, height, bitsPerPixel));
+				compress(input, width, height, expected, bitsPerPixel);
+
+				input.flip();
+				IntBuffer actual = IntBuffer.allocate(expected.capacity());
+				compress(pool, input, width, height, actual, bitsPerPixel);
+				assertEquals(input.capacity(), input.position());
+				assertEquals(expected.capacity(), actual.position());
+
+				expected.flip();
+				actual.flip();
+				assertEquals(expected, actual);
+			}
+		}
+		pool.shutdown();
+	}
+
+	@Test
+	public void testVectorKernelsMatchScalarCode() {
+		boolean hasVectorKernels = Kim2Vectorization.isEnabled();
+		Random rng = new Random(11);
+		for (int counter = 0; counter < 50; counter++) {
+			int width = rng.nextInt(300);
+			int height = rng.nextInt(50);
+			int bitsPerPixel = 1 << (counter % 4);
+
+			// Use slices, to test that the array offsets are respected
+			IntBuffer input = IntBuffer.allocate(5 + width * height).position(5).slice();
+			for (int index = 0; index < width * height; index++) input.put(rng.nextInt());
+			input.flip();
+
+			IntBuffer[] compressed = new IntBuffer[2];
+			IntBuffer[] recovered = new IntBuffer[2];
+			for (int mode = 0; mode < 2; mode++) {
+				boolean vectorize = hasVectorKernels && mode == 1;
+				compressed[mode] = IntBuffer.allocate(3 + predictIntSize(width, height, bitsPerPixel)).position(3).slice();
+				compress(input, width, height, compressed[mode], bitsPerPixel, vectorize);
+				assertEquals(width * height, input.position());
+				input.flip();
+				compressed[mode].flip();
+
+				recovered[mode] = IntBuffer.allocate(7 + width * height).position(7).slice();
+				decompress(compressed[mode].duplicate(), recovered[mode], vectorize);
+				recovered[mode].flip();
+			}
+
+			assertEquals(compressed[0], compressed[1]);
+			assertEquals(recovered[0], recovered[1]);
+		}
+	}
+
+	@Test
+	public void testLargeLowBitDecompression() {
+		int width = 123;
+		int height = 45;
+		Random rng = new Random(4);
+		IntBuffer input = IntBuffer.allocate(width * height);
+		for (int counter = 0; counter < input.capacity(); counter++) input.put(rgba(10, 20, 30, rng.nextInt(256)));
+		input.flip();
+
+		for (int bitsPerPixel : new int[] { 1, 2, 4 }) {
+			IntBuffer compressed = IntBuffer.allocate(predictIntSize(width, height, bitsPerPixel));
+			compress(input, width, height, compressed, bitsPerPixel);
+			input.flip();
+			compressed.flip();
+
+			IntBuffer heapOutput = IntBuffer.allocate(width * height);
+			decompress(compressed.duplicate(), heapOutput);
+			IntBuffer directOutput = ByteBuffer.allocateDirect(4 * width * height).asIntBuffer();
+			decompress(compressed.duplicate(), directOutput);
+			assertEquals(0, heapOutput.remaining());
+			assertEquals(0, directOutput.remaining());
+
+			int stepSize = 255 / ((1 << bitsPerPixel) - 1);
+			for (int index = 0; index < width * height; index++) {
+				int expectedAlpha = stepSize * ((unsigned(alpha(input.get(index))) + stepSize / 2) / stepSize);
+				assertEquals(rgba(10, 20, 30, expectedAlpha), heapOutput.get(index));
+				assertEquals(rgba(10, 20, 30, expectedAlpha), directOutput.get(index));
+			}
+		}
+	}
+
+	@Test
+	public void testStreamingCompression() throws IOException {
+		int width = 1234;
+		int height = 56;
+		Random rng = new Random(6);
+		IntBuffer input = IntBuffer.allocate(width * height);
+		for (int counter = 0; counter < input.capacity(); counter++) {
+			input.put(rgba(rng.nextInt(256), 100, rng.nextInt(50), rng.nextInt(256)));
+		}
+		input.flip();
+
+		for (int bitsPerPixel : new int[] { 1, 2, 4, 8 }) {
+			IntBuffer expectedInts = IntBuffer.allocate(predictIntSize(width, height, bitsPerPixel));
+			compress(input, width, height, expectedInts, bitsPerPixel);
+			input.flip();
+			ByteBuffer expected = ByteBuffer.allocate(4 * expectedInts.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+			expected.asIntBuffer().put(expectedInts.flip());
+
+			Kim2StreamingCompressor.RowSource source = (y, destination) -> destination.put(
+					input.slice(y * width, width)
+			);
+			ByteArrayOutputStream twoPassOutput = new ByteArrayOutputStream();
+			Kim2StreamingCompressor.compress(width, height, bitsPerPixel, source, Channels.newChannel(twoPassOutput));
+			assertArrayEquals(expected.array(), twoPassOutput.toByteArray());
+
+			int color = Kim2StreamingCompressor.computeColor(width, height, source);
+			ByteArrayOutputStream pushOutput = new ByteArrayOutputStream();
+			Kim2StreamingCompressor compressor = new Kim2StreamingCompressor(
+					width, height, bitsPerPixel, color, Channels.newChannel(pushOutput)
+			);
+			assertThrows(IllegalStateException.class, compressor::finish);
+			for (int y = 0; y < height; y++) compressor.pushRow(input.slice(y * width, width));
+			assertThrows(IllegalStateException.class, () -> compressor.pushRow(input.slice(0, width)));
+			compressor.finish();
+			assertArrayEquals(expected.array(), pushOutput.toByteArray());
+		}
+	}
+
+	@Test
+	public void testDecodeRowsAndRegions() {
+		int width = 77;
+		int height = 31;
+		Random rng = new Random(7);
+		IntBuffer input = IntBuffer.allocate(width * height);
+		for (int counter = 0; counter < input.capacity(); counter++) input.put(rgba(1, 2, 3, rng.nextInt(256)));
+		input.flip();
+
+		for (int bitsPerPixel : new int[] { 1, 2, 4, 8 }) {
+			IntBuffer compressed = IntBuffer.allocate(5 + predictIntSize(width, height, bitsPerPixel)).position(5);
+			compress(input, width, height, compressed, bitsPerPixel);
+			input.flip();
+			compressed.position(5);
+
+			IntBuffer full = IntBuffer.allocate(width * height);
+			decompress(compressed.duplicate(), full);
+
+			IntBuffer rows = IntBuffer.allocate(width * 5);
+			decodeRows(compressed, 13, 5, rows);
+			assertEquals(5, compressed.position());
+			assertEquals(full.slice(13 * width, 5 * width), rows.flip());
+
+			IntBuffer region = IntBuffer.allocate(20 * 9);
+			decodeRegion(compressed, 50, 21, 20, 9, region);
+			region.flip();
+			for (int y = 21; y < 30; y++) {
+				for (int x = 50; x < 70; x++) assertEquals(full.get(x + y * width), region.get());
+			}
+
+			assertThrows(IllegalArgumentException.class, () -> decodeRows(compressed, 30, 2, rows.clear()));
+			assertThrows(IllegalArgumentException.class, () -> decodeRegion(compressed, 60, 0, 20, 1, region.clear()));
+		}
+	}
+
+	@Test
+	public void testStreamingDecompression() throws IOException {
+		int width = 321;
+		int height = 123;
+		Random rng = new Random(8);
+		IntBuffer input = IntBuffer.allocate(width * height);
+		for (int counter = 0; counter < input.capacity(); counter++) input.put(rgba(50, 0, 250, rng.nextInt(256)));
+		input.flip();
+
+		for (int bitsPerPixel : new int[] { 1, 2, 4, 8 }) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			Kim2StreamingCompressor.compress(
+					width, height, bitsPerPixel, (y, row) -> row.put(input.slice(y * width, width)),
+					Channels.newChannel(compressed)
+			);
+			compressed.write(new byte[] { 1, 2, 3 });
+
+			IntBuffer expected = IntBuffer.allocate(width * height);
+			decompress(IntBuffer.wrap(toInts(compressed.toByteArray())), expected);
+			expected.flip();
+
+			var source = Channels.newChannel(new ByteArrayInputStream(compressed.toByteArray()));
+			int[] nextRow = { 0 };
+			int header = Kim2StreamingDecompressor.decompress(source, (y, row) -> {
+				assertEquals(nextRow[0], y);
+				assertEquals(expected.slice(y * width, width), row);
+				nextRow[0] += 1;
+			});
+			assertEquals(height, nextRow[0]);
+			assertEquals(width, getWidth(header));
+			assertEquals(height, getHeight(header));
+
+			// The bytes after the image should not have been consumed
+			ByteBuffer trailer = ByteBuffer.allocate(4);
+			assertEquals(3, source.read(trailer));
+		}
+	}
+
+	private static int[] toInts(byte[] bytes) {
+		IntBuffer ints = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		int[] result = new int[ints.remaining()];
+		ints.get(result);
+		return result;
+	}
+
 	@Test
 	public void testTransparentImage() {
 		IntBuffer compressed = IntBuffer.allocate(3);
@@ -162,6 +459,86 @@ public class TestKim2Compression {
 		assertEquals(0, recovered.getRGB(0, 0));
 	}
 
+	@Test
+	public void testPaddedRasters() {
+		// The rows of these rasters are further apart than the width of the image
+		var argbModel = new DirectColorModel(32, 0xFF0000, 0xFF00, 0xFF, 0xFF000000);
+		var argbImage = new BufferedImage(argbModel, Raster.createWritableRaster(
+				new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, 4, 3, 10, argbModel.getMasks()), null
+		), false, null);
+
+		var abgrModel = new ComponentColorModel(
+				ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false,
+				Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE
+		);
+		var abgrImage = new BufferedImage(abgrModel, Raster.createInterleavedRaster(
+				DataBuffer.TYPE_BYTE, 4, 3, 4 * 4 + 12, 4, new int[] { 3, 2, 1, 0 }, null
+		), false, null);
+
+		var grayModel = new ComponentColorModel(
+				ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false,
+				Transparency.OPAQUE, DataBuffer.TYPE_BYTE
+		);
+		var grayImage = new BufferedImage(grayModel, Raster.createInterleavedRaster(
+				DataBuffer.TYPE_BYTE, 4, 3, 7, 1, new int[] { 0 }, null
+		), false, null);
+
+		Random rng = new Random(8);
+		var images = new BufferedImage[] { argbImage, abgrImage, grayImage };
+		int[] expectedTypes = { BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY };
+		for (int index = 0; index < images.length; index++) {
+			var image = images[index];
+			assertEquals(expectedTypes[index], image.getType());
+			for (int y = 0; y < 3; y++) {
+				for (int x = 0; x < 4; x++) image.setRGB(x, y, rng.nextInt());
+			}
+
+			int[] expected = new int[4 * 3];
+			for (int y = 0; y < 3; y++) {
+				for (int x = 0; x < 4; x++) {
+					Color color = new Color(image.getRGB(x, y), true);
+					expected[x + 4 * y] = rgba(color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha());
+				}
+			}
+			assertArrayEquals(expected, toPackedPixels(image));
+		}
+	}
+
+	@Test
+	public void testImageTypes() {
+		Random rng = new Random(5);
+		int[] imageTypes = {
+				BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY,
+				BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR
+		};
+		for (int imageType : imageTypes) {
+			BufferedImage fullImage = new BufferedImage(53, 31, imageType);
+			for (int y = 0; y < fullImage.getHeight(); y++) {
+				for (int x = 0; x < fullImage.getWidth(); x++) fullImage.setRGB(x, y, rng.nextInt());
+			}
+
+			for (BufferedImage image : new BufferedImage[] { fullImage, fullImage.getSubimage(3, 4, 20, 17) }) {
+				IntBuffer pixels = IntBuffer.allocate(image.getWidth() * image.getHeight());
+				for (int y = 0; y < image.getHeight(); y++) {
+					for (int x = 0; x < image.getWidth(); x++) {
+						Color color = new Color(image.getRGB(x, y), true);
+						pixels.put(rgba(color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha()));
+					}
+				}
+				pixels.flip();
+
+				IntBuffer expected = IntBuffer.allocate(predictIntSize(image.getWidth(), image.getHeight(), 4));
+				compress(pixels, image.getWidth(), image.getHeight(), expected, 4);
+				expected.flip();
+
+				IntBuffer actual = IntBuffer.allocate(expected.capacity());
+				compress(image, actual, 4);
+				actual.flip();
+				assertEquals(expected, actual);
+			}
+		}
+	}
+
 	private BufferedImage recoveredEarth(int bitsPerPixel) throws IOException {
 		return ImageIO.read(requireNonNull(TestKim2Compression.class.getResource("EarthRecovered" + bitsPerPixel + ".png")));
 	}
@@ -188,6 +565,65 @@ public class TestKim2Compression {
 		}
 	}
 
+	@Test
+	public void testBitsPerPixelSelection() {
+		Random rng = new Random(54321);
+		int width = 37;
+		int height = 23;
+		IntBuffer input = IntBuffer.allocate(width * height + 3);
+		input.position(3);
+		for (int counter = 0; counter < width * height; counter++) input.put(rgba(10, 20, 30, rng.nextInt(256)));
+		input.position(3);
+
+		long[] histogram = Kim2BitsPerPixelSelector.alphaHistogram(input, width * height);
+		assertEquals(3, input.position());
+
+		// The statistics must match those of an actual compression
+		for (int bitsPerPixel : new int[] { 1, 2, 4, 8 }) {
+			IntBuffer compressed = IntBuffer.allocate(predictIntSize(width, height, bitsPerPixel));
+			compress(input.duplicate(), width, height, compressed, bitsPerPixel);
+			compressed.flip();
+			IntBuffer recovered = IntBuffer.allocate(width * height);
+			decompress(compressed, recovered);
+
+			int maxError = 0;
+			long totalSquaredError = 0;
+			for (int index = 0; index < width * height; index++) {
+				int error = unsigned(alpha(input.get(3 + index))) - unsigned(alpha(recovered.get(index)));
+				maxError = Math.max(maxError, Math.abs(error));
+				totalSquaredError += error * error;
+			}
+
+			var result = Kim2BitsPerPixelSelector.evaluate(histogram, bitsPerPixel);
+			assertEquals(bitsPerPixel, result.bitsPerPixel());
+			assertEquals(maxError, result.maxError());
+			assertEquals((double) totalSquaredError / (width * height), result.meanSquaredError(), 1e-9);
+		}
+
+		assertEquals(0, Kim2BitsPerPixelSelector.evaluate(histogram, 8).maxError());
+		assertEquals(Double.POSITIVE_INFINITY, Kim2BitsPerPixelSelector.evaluate(histogram, 8).psnr());
+
+		// Step size 17 => max error 8, step size 85 => max error 42
+		assertEquals(4, Kim2BitsPerPixelSelector.selectForMaxError(input, width, height, 8).bitsPerPixel());
+		assertEquals(8, Kim2BitsPerPixelSelector.selectForMaxError(input, width, height, 7).bitsPerPixel());
+		assertEquals(2, Kim2BitsPerPixelSelector.selectForMaxError(input, width, height, 42).bitsPerPixel());
+		assertEquals(1, Kim2BitsPerPixelSelector.selectForMaxError(input, width, height, 255).bitsPerPixel());
+		assertEquals(3, input.position());
+
+		double psnr4 = Kim2BitsPerPixelSelector.evaluate(histogram, 4).psnr();
+		assertEquals(4, Kim2BitsPerPixelSelector.selectForPsnr(input, width, height, psnr4).bitsPerPixel());
+		assertEquals(8, Kim2BitsPerPixelSelector.selectForPsnr(input, width, height, psnr4 + 0.01).bitsPerPixel());
+		assertEquals(1, Kim2BitsPerPixelSelector.selectForPsnr(input, width, height, 0.0).bitsPerPixel());
+
+		// An image with only fully transparent and fully opaque pixels is lossless with 1 bit per pixel
+		IntBuffer binary = IntBuffer.wrap(new int[] { rgba(1, 2, 3, 0), rgba(4, 5, 6, 255), rgba(7, 8, 9, 255) });
+		var binaryResult = Kim2BitsPerPixelSelector.selectForMaxError(binary, 3, 1, 0);
+		assertEquals(1, binaryResult.bitsPerPixel());
+		assertEquals(0.0, binaryResult.meanSquaredError());
+
+		assertThrows(IllegalArgumentException.class, () -> Kim2BitsPerPixelSelector.evaluate(histogram, 3));
+	}
+
 	@SuppressWarnings("resource")
 	@Test
 	public void testGpuCompressionAndDecompression() throws IOException {
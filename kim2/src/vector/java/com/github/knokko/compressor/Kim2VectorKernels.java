@@ -0,0 +1,234 @@
+package com.github.knokko.compressor;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.IntBuffer;
+
+/**
+ * The hot loops of the kim2 compressor and decompressor, written with the (incubating) Vector API. This class must
+ * only be used when <i>Kim2Vectorization.isEnabled()</i> returns true. All methods produce exactly the same results
+ * as the scalar code in <i>Kim2Compressor</i> and <i>Kim2Decompressor</i>.
+ * <p>
+ * This class is compiled separately (in the <i>vector</i> source set), and stored in <i>META-INF/versions/17</i> of
+ * the multi-release jar, where it replaces the placeholder <i>Kim2VectorKernels</i> of the main source set.
+ * </p>
+ */
+final class Kim2VectorKernels {
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+	/**
+	 * The sums are accumulated in <b>int</b> lanes for this many pixels at a time, before they are added to the
+	 * <b>long</b> totals. Since the weighted color of 1 pixel is at most {@code 255 * 255 * 255}, the sum of all lanes
+	 * of 1 block will never overflow.
+	 */
+	private static final int BLOCK_SIZE = 128;
+
+	static boolean isUseful() {
+		return SPECIES.length() >= 4 && BLOCK_SIZE % SPECIES.length() == 0 && 32 % SPECIES.length() == 0;
+	}
+
+	/**
+	 * Computes {@code floor(x / stepSize)} as {@code (x * multiplier) >>> 16}, which is exact for all
+	 * {@code 0 <= x <= 255 + stepSize / 2}
+	 */
+	private static int divisionMultiplier(int stepSize) {
+		return (65536 + stepSize - 1) / stepSize;
+	}
+
+	/**
+	 * Computes the shift of each lane within its word of compressed data
+	 */
+	private static IntVector laneShifts(int bitsPerPixel) {
+		int pixelsPerWord = 32 / bitsPerPixel;
+		int[] shifts = new int[SPECIES.length()];
+		for (int lane = 0; lane < shifts.length; lane++) shifts[lane] = (lane % pixelsPerWord) * bitsPerPixel;
+		return IntVector.fromArray(SPECIES, shifts, 0);
+	}
+
+	/**
+	 * The vector equivalent of <i>Kim2Compressor.accumulateColor</i>, for pixels stored in an array
+	 */
+	static void accumulateColor(int[] pixels, int minIndex, int boundIndex, long[] totals, int offset) {
+		long totalAlpha = 0;
+		long totalRed = 0;
+		long totalGreen = 0;
+		long totalBlue = 0;
+
+		int index = minIndex;
+		int vectorBound = minIndex + (boundIndex - minIndex) / BLOCK_SIZE * BLOCK_SIZE;
+		for (; index < vectorBound; index += BLOCK_SIZE) {
+			IntVector sumAlpha = IntVector.zero(SPECIES);
+			IntVector sumRed = IntVector.zero(SPECIES);
+			IntVector sumGreen = IntVector.zero(SPECIES);
+			IntVector sumBlue = IntVector.zero(SPECIES);
+
+			for (int blockIndex = index; blockIndex < index + BLOCK_SIZE; blockIndex += SPECIES.length()) {
+				IntVector raw = IntVector.fromArray(SPECIES, pixels, blockIndex);
+				IntVector alpha = raw.lanewise(VectorOperators.LSHR, 24);
+				IntVector weight = alpha.mul(alpha);
+				sumAlpha = sumAlpha.add(weight);
+				sumRed = sumRed.add(weight.mul(raw.and(255)));
+				sumGreen = sumGreen.add(weight.mul(raw.lanewise(VectorOperators.LSHR, 8).and(255)));
+				sumBlue = sumBlue.add(weight.mul(raw.lanewise(VectorOperators.LSHR, 16).and(255)));
+			}
+
+			totalAlpha += sumAlpha.reduceLanes(VectorOperators.ADD);
+			totalRed += sumRed.reduceLanes(VectorOperators.ADD);
+			totalGreen += sumGreen.reduceLanes(VectorOperators.ADD);
+			totalBlue += sumBlue.reduceLanes(VectorOperators.ADD);
+		}
+
+		for (; index < boundIndex; index++) {
+			int raw = pixels[index];
+			long alpha = raw >>> 24;
+			long weight = alpha * alpha;
+			totalAlpha += weight;
+			totalRed += weight * (raw & 255);
+			totalGreen += weight * ((raw >> 8) & 255);
+			totalBlue += weight * ((raw >> 16) & 255);
+		}
+
+		totals[offset] += totalAlpha;
+		totals[offset + 1] += totalRed;
+		totals[offset + 2] += totalGreen;
+		totals[offset + 3] += totalBlue;
+	}
+
+	/**
+	 * Quantizes the alpha of the {@code numPixels} pixels starting at {@code pixels[firstPixel]}, and packs them into
+	 * {@code ceil(numPixels * bitsPerPixel / 32)} words, which are stored in {@code words}, starting at
+	 * {@code words[firstWord]}
+	 */
+	@SuppressWarnings("unchecked")
+	static void pack(int[] pixels, int firstPixel, int numPixels, int bitsPerPixel, int[] words, int firstWord) {
+		int pixelsPerWord = 32 / bitsPerPixel;
+		int stepSize = 255 / ((1 << bitsPerPixel) - 1);
+		int multiplier = divisionMultiplier(stepSize);
+		IntVector laneShifts = laneShifts(bitsPerPixel);
+
+		int pixel = firstPixel;
+		int word = firstWord;
+		int boundPixel = firstPixel + numPixels;
+		if (pixelsPerWord >= SPECIES.length()) {
+			// Every word needs 1 or more vectors
+			int vectorShift = SPECIES.length() * bitsPerPixel;
+			for (; pixel + pixelsPerWord <= boundPixel; pixel += pixelsPerWord) {
+				int value = 0;
+				for (int vectorIndex = 0; vectorIndex < pixelsPerWord / SPECIES.length(); vectorIndex++) {
+					IntVector storedAlpha = quantize(pixels, pixel + vectorIndex * SPECIES.length(), stepSize, multiplier);
+					int part = storedAlpha.lanewise(VectorOperators.LSHL, laneShifts).reduceLanes(VectorOperators.OR);
+					value |= part << (vectorIndex * vectorShift);
+				}
+				words[word] = value;
+				word += 1;
+			}
+		} else {
+			// Every vector covers multiple words
+			// The ith mask selects the lanes of the ith word. These masks must be created right here: when they are
+			// created in the loop, or returned by another method, the JIT won't compile them to vector instructions.
+			int wordsPerVector = SPECIES.length() / pixelsPerWord;
+			VectorMask<Integer>[] wordMasks = (VectorMask<Integer>[]) new VectorMask<?>[wordsPerVector];
+			for (int index = 0; index < wordsPerVector; index++) {
+				wordMasks[index] = SPECIES.indexInRange(-index * pixelsPerWord, pixelsPerWord);
+			}
+			for (; pixel + SPECIES.length() <= boundPixel; pixel += SPECIES.length()) {
+				IntVector shiftedAlpha = quantize(pixels, pixel, stepSize, multiplier)
+						.lanewise(VectorOperators.LSHL, laneShifts);
+				for (int wordIndex = 0; wordIndex < wordsPerVector; wordIndex++) {
+					words[word + wordIndex] = shiftedAlpha.reduceLanes(
+							VectorOperators.OR, wordMasks[wordIndex]
+					);
+				}
+				word += wordsPerVector;
+			}
+		}
+
+		// The remaining pixels start at a word boundary
+		for (; pixel < boundPixel; pixel += pixelsPerWord) {
+			int value = 0;
+			int bitOffset = 0;
+			for (int wordPixel = pixel; wordPixel < Math.min(boundPixel, pixel + pixelsPerWord); wordPixel++) {
+				value |= (((pixels[wordPixel] >>> 24) + stepSize / 2) / stepSize) << bitOffset;
+				bitOffset += bitsPerPixel;
+			}
+			words[word] = value;
+			word += 1;
+		}
+	}
+
+	private static IntVector quantize(int[] pixels, int index, int stepSize, int multiplier) {
+		return IntVector.fromArray(SPECIES, pixels, index)
+				.lanewise(VectorOperators.LSHR, 24)
+				.add(stepSize / 2)
+				.mul(multiplier)
+				.lanewise(VectorOperators.LSHR, 16);
+	}
+
+	/**
+	 * Reads {@code ceil(numPixels * bitsPerPixel / 32)} words from {@code compressed}, and stores the
+	 * {@code numPixels} decoded pixels in {@code output}, starting at {@code output[outputIndex]}. The decoded color of
+	 * a pixel is {@code color | (alpha << alphaShift)}.
+	 */
+	@SuppressWarnings("unchecked")
+	static void unpack(
+			IntBuffer compressed, int numPixels, int bitsPerPixel,
+			int color, int alphaShift, int[] output, int outputIndex
+	) {
+		int pixelsPerWord = 32 / bitsPerPixel;
+		int bitMask = (1 << bitsPerPixel) - 1;
+		int stepSize = 255 / bitMask;
+		IntVector laneShifts = laneShifts(bitsPerPixel);
+
+		int pixel = 0;
+		if (pixelsPerWord >= SPECIES.length()) {
+			// Every word needs 1 or more vectors
+			int vectorShift = SPECIES.length() * bitsPerPixel;
+			for (; pixel + pixelsPerWord <= numPixels; pixel += pixelsPerWord) {
+				int value = compressed.get();
+				for (int vectorIndex = 0; vectorIndex < pixelsPerWord / SPECIES.length(); vectorIndex++) {
+					IntVector values = IntVector.broadcast(SPECIES, value >>> (vectorIndex * vectorShift));
+					decode(values, laneShifts, bitMask, stepSize, alphaShift, color)
+							.intoArray(output, outputIndex + pixel + vectorIndex * SPECIES.length());
+				}
+			}
+		} else {
+			// Every vector covers multiple words
+			int wordsPerVector = SPECIES.length() / pixelsPerWord;
+			VectorMask<Integer>[] wordMasks = (VectorMask<Integer>[]) new VectorMask<?>[wordsPerVector];
+			for (int index = 0; index < wordsPerVector; index++) {
+				wordMasks[index] = SPECIES.indexInRange(-index * pixelsPerWord, pixelsPerWord);
+			}
+			for (; pixel + SPECIES.length() <= numPixels; pixel += SPECIES.length()) {
+				IntVector values = IntVector.broadcast(SPECIES, compressed.get());
+				for (int wordIndex = 1; wordIndex < wordsPerVector; wordIndex++) {
+					values = values.blend(compressed.get(), wordMasks[wordIndex]);
+				}
+				decode(values, laneShifts, bitMask, stepSize, alphaShift, color).intoArray(output, outputIndex + pixel);
+			}
+		}
+
+		// The remaining pixels start at a word boundary
+		for (; pixel < numPixels; pixel += pixelsPerWord) {
+			int value = compressed.get();
+			for (int wordPixel = 0; wordPixel < Math.min(pixelsPerWord, numPixels - pixel); wordPixel++) {
+				int storedAlpha = (value >> (wordPixel * bitsPerPixel)) & bitMask;
+				output[outputIndex + pixel + wordPixel] = color | ((stepSize * storedAlpha) << alphaShift);
+			}
+		}
+	}
+
+	private static IntVector decode(
+			IntVector values, IntVector laneShifts, int bitMask, int stepSize, int alphaShift, int color
+	) {
+		return values
+				.lanewise(VectorOperators.LSHR, laneShifts)
+				.and(bitMask)
+				.mul(stepSize)
+				.lanewise(VectorOperators.LSHL, alphaShift)
+				.or(color);
+	}
+}